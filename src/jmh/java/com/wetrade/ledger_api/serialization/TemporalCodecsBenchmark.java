@@ -0,0 +1,60 @@
+package com.wetrade.ledger_api.serialization;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * TemporalCodecs against the SimpleDateFormat State used to create for every Date field
+ * it wrote or read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TemporalCodecsBenchmark {
+    private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    private final Date date = new Date(1570000000000L);
+    private final String formatted = "2019-10-02T07:06:40Z";
+    private final Instant instant = Instant.ofEpochSecond(1570000000L, 123000000L);
+    private final String formattedInstant = "2019-10-02T07:06:40.123Z";
+
+    @Benchmark
+    public String formatDateSimpleDateFormat() {
+        return new SimpleDateFormat(PATTERN).format(this.date);
+    }
+
+    @Benchmark
+    public String formatDateCodec() {
+        return TemporalCodecs.formatDate(this.date);
+    }
+
+    @Benchmark
+    public Date parseDateSimpleDateFormat() throws ParseException {
+        return new SimpleDateFormat(PATTERN).parse(this.formatted);
+    }
+
+    @Benchmark
+    public Date parseDateCodec() {
+        return TemporalCodecs.parseDate(this.formatted);
+    }
+
+    @Benchmark
+    public String formatInstantCodec() {
+        return TemporalCodecs.format(this.instant);
+    }
+
+    @Benchmark
+    public Object parseInstantCodec() {
+        return TemporalCodecs.parse(Instant.class, this.formattedInstant);
+    }
+}
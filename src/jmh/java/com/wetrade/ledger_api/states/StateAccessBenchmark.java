@@ -0,0 +1,118 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.wetrade.ledger_api.Asset;
+import com.wetrade.ledger_api.Participant;
+import com.wetrade.ledger_api.annotations.DefaultDeserialize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading every field and calling the deserialize constructor through the generated
+ * accessors in StateMetadata against plain Field.get and Constructor.newInstance, the way
+ * State did it before, for Asset and Participant shaped states.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateAccessBenchmark {
+    @Param({"asset", "participant"})
+    public String shape;
+
+    private Object state;
+    private Object[] args;
+    private List<Field> fields;
+    private List<FieldMetadata> accessors;
+    private Constructor<?> constructor;
+    private ConstructorMetadata factory;
+
+    @Setup
+    public void setup() {
+        final Class<?> clazz;
+
+        if (this.shape.equals("asset")) {
+            clazz = BenchAsset.class;
+            this.args = new Object[] {"asset1", "org1", 1250L, 3, new String[] {"blue", "large"}};
+        } else {
+            clazz = BenchParticipant.class;
+            this.args = new Object[] {"participant1", new String[] {"admin", "trader"}, "org1", "trader"};
+        }
+
+        final StateMetadata metadata = StateMetadata.forClass(clazz);
+
+        this.factory = metadata.getDefaultDeserializer();
+        this.constructor = this.factory.getConstructor();
+        this.accessors = metadata.getFields();
+        this.fields = new ArrayList<Field>();
+
+        for (FieldMetadata field : this.accessors) {
+            this.fields.add(field.getField());
+        }
+
+        try {
+            this.state = this.factory.newInstance(this.args);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Benchmark
+    public void readFieldsReflective(Blackhole blackhole) throws IllegalAccessException {
+        for (Field field : this.fields) {
+            blackhole.consume(field.get(this.state));
+        }
+    }
+
+    @Benchmark
+    public void readFieldsGenerated(Blackhole blackhole) throws IllegalAccessException {
+        for (FieldMetadata field : this.accessors) {
+            blackhole.consume(field.get(this.state));
+        }
+    }
+
+    @Benchmark
+    public Object constructReflective() throws Exception {
+        return this.constructor.newInstance(this.args);
+    }
+
+    @Benchmark
+    public Object constructGenerated() throws Exception {
+        return this.factory.newInstance(this.args);
+    }
+
+    public static class BenchAsset extends Asset {
+        private String owner;
+        private long value;
+        private int quantity;
+        private String[] tags;
+
+        @DefaultDeserialize
+        public BenchAsset(String id, String owner, long value, int quantity, String[] tags) {
+            super(id);
+            this.owner = owner;
+            this.value = value;
+            this.quantity = quantity;
+            this.tags = tags;
+        }
+    }
+
+    public static class BenchParticipant extends Participant {
+        @DefaultDeserialize
+        public BenchParticipant(String id, String[] roles, String organizationId, String participantType) {
+            super(id, roles, organizationId, participantType);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.wetrade.ledger_api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps a composite key index of the field so states can be found by its value with
+ * StateList.findBy and findByRange, or findByValues and findByValuesRange for several
+ * values. Fields given the same name make up one composite index, ordered by order. An
+ * index is unique if any of its fields says so.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public abstract @interface Indexed {
+
+  public abstract java.lang.String name() default "";
+
+  public abstract int order() default 0;
+
+  public abstract boolean unique() default false;
+}
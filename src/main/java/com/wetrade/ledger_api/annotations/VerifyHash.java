@@ -5,7 +5,15 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/**
+ * Marks the constructor State.verifyHash builds a state from to check a hash. Naming the
+ * parameters that make up the key, in order, in keyParts opts in to working the hash out
+ * from the arguments without building the state. That needs the constructor to store
+ * every other hashed field as it is from the parameter of the same name.
+ */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.CONSTRUCTOR)
 public abstract @interface VerifyHash {
-}
\ No newline at end of file
+
+  public abstract java.lang.String[] keyParts() default {};
+}
@@ -1,36 +1,43 @@
 package com.wetrade.ledger_api.collections;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.parboiled.Node;
 import org.parboiled.Parboiled;
 import org.parboiled.parserunners.ReportingParseRunner;
 import org.parboiled.support.ParsingResult;
 
-enum Operators {
-    OR,
-    AND
-}
-
 public class BooleanRulesHandler {
+    private static final int MAX_COMPILED_RULES = 512;
 
-    // TODO MAKE THIS ALL STATIC AS SEEMS THAT WOULD BE BETTER BUT AS LIAM
+    // rules come from annotations and query builders so the set in use is small, keep the most recent
+    private static final Map<String, CompiledRule> compiledRules = Collections.synchronizedMap(
+        new LinkedHashMap<String, CompiledRule>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
 
-    private List<Node<BooleanRules>> tree;
-    private List<String> values;
-    private String input;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledRule> eldest) {
+                return this.size() > MAX_COMPILED_RULES;
+            }
+        }
+    );
 
-    public BooleanRulesHandler(String rules) {
-        this.setup(rules, new String[] {});
-    }
+    public static CompiledRule compile(String rules) {
+        CompiledRule compiled = compiledRules.get(rules);
 
-    public BooleanRulesHandler(String rules, String[] values) {
-        this.setup(rules, values);
+        if (compiled == null) {
+            compiled = BooleanRulesHandler.parse(rules);
+            compiledRules.put(rules, compiled);
+        }
+
+        return compiled;
     }
 
-    private void setup(String rules, String[] values) {
+    private static CompiledRule parse(String rules) {
         BooleanRules parser = Parboiled.createParser(BooleanRules.class);
 
         ParsingResult<BooleanRules> result = new ReportingParseRunner<BooleanRules>(parser.Expression()).run(rules);
@@ -39,97 +46,69 @@ public class BooleanRulesHandler {
             throw new RuntimeException("Collection rules invalid");
         }
 
-        this.tree = result.parseTreeRoot.getChildren();
-        this.input = rules;
-        this.values = Arrays.asList(values);
-    }
+        ArrayList<String> entries = new ArrayList<String>();
+        CompiledRule.Term root = BooleanRulesHandler.toTerm(result.parseTreeRoot.getChildren().get(0), rules, entries);
 
-    public Boolean evaluate() {
-        return this.evaluate(this.tree.get(0));
+        return new CompiledRule(rules, root, entries.toArray(new String[entries.size()]));
     }
 
-    private Boolean evaluate(Node<BooleanRules> node) {
+    private static CompiledRule.Term toTerm(Node<BooleanRules> node, String input, List<String> entries) {
         switch (node.getLabel()) {
-            case "AnyOf": return this.AnyOfHandler(node);
-            case "AllOf": return this.AllOfHandler(node);
-            case "OR": return this.ORHandler(node);
-            case "AND": return this.ANDHandler(node);
-            case "ComparisonItem": return this.comparisonItemHandler(node);
-            case "QuotedString": return this.collectionFound(node);
+            case "AnyOf": return new CompiledRule.Any(BooleanRulesHandler.multiItemTerms(node, input, entries));
+            case "AllOf": return new CompiledRule.All(BooleanRulesHandler.multiItemTerms(node, input, entries));
+            case "OR": return new CompiledRule.Any(BooleanRulesHandler.pairTerms(node, input, entries));
+            case "AND": return new CompiledRule.All(BooleanRulesHandler.pairTerms(node, input, entries));
+            case "ComparisonItem": return BooleanRulesHandler.toTerm(node.getChildren().get(0), input, entries);
+            case "QuotedString":
+                final String collection = input.substring(node.getStartIndex() + 1, node.getEndIndex() - 1);
+                entries.add(collection);
+                return new CompiledRule.Entry(collection);
             default: throw new RuntimeException("Invalid rule label: " + node.getLabel());
         }
     }
 
-    public String[] getEntries() {
-        ArrayList<String> arr = new ArrayList<String>();
-
-        this.getEntries(this.tree.get(0), arr);
-
-        return arr.toArray(new String[arr.size()]);
-    }
-
-    public void getEntries(Node<BooleanRules> node, ArrayList<String> arr) {
-        for (Node<BooleanRules> child : node.getChildren()) {
-            if (child.getLabel() == "QuotedString") {
-                arr.add(this.parseQuotedString(node));
-            } else {
-                this.getEntries(child, arr);
-            }
-        }
-    }
-
-    private String parseQuotedString(Node<BooleanRules> node) {
-        return this.input.substring(node.getStartIndex() + 1, node.getEndIndex() - 1);
-    }
-
-    private Boolean collectionFound(Node<BooleanRules> node) {
-        final String collection = this.parseQuotedString(node);
-
-        return collection.equals("*") || values.contains(collection);
-    }
-
-    private Boolean comparisonItemHandler(Node<BooleanRules> node) {
-        return this.evaluate(node.getChildren().get(0));
-    }
-
-    private Boolean multiItemHandler(Node<BooleanRules> node, Operators op) {
+    private static CompiledRule.Term[] multiItemTerms(Node<BooleanRules> node, String input, List<String> entries) {
         final Node<BooleanRules> multiItem = node.getChildren().get(1);
 
         final List<Node<BooleanRules>> multiItemChildren = multiItem.getChildren();
-        final Node<BooleanRules> firstComparisonItem = multiItemChildren.get(0);
         final List<Node<BooleanRules>> otherComparisonItems = multiItemChildren.get(1).getChildren();
 
-        Boolean result = this.evaluate(firstComparisonItem);
-
-        for (Node<BooleanRules> sequence: otherComparisonItems) {
-            Node<BooleanRules> comparisonItem = sequence.getChildren().get(2);
+        CompiledRule.Term[] terms = new CompiledRule.Term[otherComparisonItems.size() + 1];
+        terms[0] = BooleanRulesHandler.toTerm(multiItemChildren.get(0), input, entries);
 
-            switch (op) {
-                case OR: result = result || this.evaluate(comparisonItem); break;
-                case AND: result = result && this.evaluate(comparisonItem); break;
-            }
+        for (int i = 0; i < otherComparisonItems.size(); i++) {
+            terms[i + 1] = BooleanRulesHandler.toTerm(otherComparisonItems.get(i).getChildren().get(2), input, entries);
         }
 
-        return result;
+        return terms;
     }
 
-    private Boolean AnyOfHandler(Node<BooleanRules> node) {
-        return this.multiItemHandler(node, Operators.OR);
-    }
+    private static CompiledRule.Term[] pairTerms(Node<BooleanRules> node, String input, List<String> entries) {
+        final List<Node<BooleanRules>> children = node.getChildren();
 
-    private Boolean AllOfHandler(Node<BooleanRules> node) {
-        return this.multiItemHandler(node, Operators.AND);
+        return new CompiledRule.Term[] {
+            BooleanRulesHandler.toTerm(children.get(1), input, entries),
+            BooleanRulesHandler.toTerm(children.get(3), input, entries)
+        };
     }
 
-    private Boolean ORHandler(Node<BooleanRules> node) {
-        final List<Node<BooleanRules>> children = node.getChildren();
+    private CompiledRule rule;
+    private String[] values;
 
-        return this.evaluate(children.get(1)) || this.evaluate(children.get(3));
+    public BooleanRulesHandler(String rules) {
+        this(rules, new String[] {});
     }
 
-    private Boolean ANDHandler(Node<BooleanRules> node) {
-        final List<Node<BooleanRules>> children = node.getChildren();
+    public BooleanRulesHandler(String rules, String[] values) {
+        this.rule = BooleanRulesHandler.compile(rules);
+        this.values = values;
+    }
 
-        return this.evaluate(children.get(1)) && this.evaluate(children.get(3));
+    public Boolean evaluate() {
+        return this.rule.evaluate(this.values);
+    }
+
+    public String[] getEntries() {
+        return this.rule.getEntries();
     }
 }
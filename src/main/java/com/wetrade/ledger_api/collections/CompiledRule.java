@@ -0,0 +1,93 @@
+package com.wetrade.ledger_api.collections;
+
+/**
+ * Immutable predicate tree for a collections rule such as AllOf('a', OR('b', 'c')).
+ * Instances are shared between threads and evaluating one does not allocate.
+ */
+public class CompiledRule {
+    private final String rule;
+    private final Term root;
+    private final String[] entries;
+
+    CompiledRule(String rule, Term root, String[] entries) {
+        this.rule = rule;
+        this.root = root;
+        this.entries = entries;
+    }
+
+    public String getRule() {
+        return this.rule;
+    }
+
+    public boolean evaluate(String[] values) {
+        return this.root.evaluate(values);
+    }
+
+    public String[] getEntries() {
+        return this.entries.clone();
+    }
+
+    abstract static class Term {
+        abstract boolean evaluate(String[] values);
+    }
+
+    static class Entry extends Term {
+        private final String collection;
+        private final boolean wildcard;
+
+        Entry(String collection) {
+            this.collection = collection;
+            this.wildcard = collection.equals("*");
+        }
+
+        boolean evaluate(String[] values) {
+            if (this.wildcard) {
+                return true;
+            }
+
+            for (String value : values) {
+                if (this.collection.equals(value)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    static class Any extends Term {
+        private final Term[] terms;
+
+        Any(Term[] terms) {
+            this.terms = terms;
+        }
+
+        boolean evaluate(String[] values) {
+            for (Term term : this.terms) {
+                if (term.evaluate(values)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    static class All extends Term {
+        private final Term[] terms;
+
+        All(Term[] terms) {
+            this.terms = terms;
+        }
+
+        boolean evaluate(String[] values) {
+            for (Term term : this.terms) {
+                if (!term.evaluate(values)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
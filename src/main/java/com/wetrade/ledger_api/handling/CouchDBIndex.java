@@ -0,0 +1,80 @@
+package com.wetrade.ledger_api.handling;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A CouchDB JSON index over one or more document fields. The design document and index
+ * name come from the field names alone, so the same fields always give the same index
+ * whichever state class asked for it. The names are joined for readability and followed
+ * by a digest of the list, each name ended by a NUL, so lists that join to the same text
+ * still get different names.
+ */
+public class CouchDBIndex {
+    private List<String> fields;
+    private String name;
+
+    public CouchDBIndex(List<String> fields) {
+        this.fields = fields;
+        this.name = "ledger-api-" + String.join("-", fields) + "-" + CouchDBIndex.digest(fields);
+    }
+
+    // the first 64 bits of the SHA-256 of the names, hex encoded
+    private static String digest(List<String> fields) {
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available. " + e.getMessage());
+        }
+
+        for (String field : fields) {
+            digest.update(field.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        final byte[] bytes = digest.digest();
+        final StringBuilder hex = new StringBuilder(16);
+
+        for (int i = 0; i < 8; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    public List<String> getFields() {
+        return this.fields;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public String getDesignDocument() {
+        return this.name;
+    }
+
+    public JSONArray toHint() {
+        return new JSONArray().put("_design/" + this.getDesignDocument()).put(this.getName());
+    }
+
+    public JSONObject toJSON() {
+        final JSONObject index = new JSONObject();
+        index.put("fields", new JSONArray(this.fields));
+
+        final JSONObject json = new JSONObject();
+        json.put("index", index);
+        json.put("ddoc", this.getDesignDocument());
+        json.put("name", this.getName());
+        json.put("type", "json");
+
+        return json;
+    }
+}
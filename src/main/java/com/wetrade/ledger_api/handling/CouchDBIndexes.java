@@ -0,0 +1,201 @@
+package com.wetrade.ledger_api.handling;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.wetrade.ledger_api.states.FieldMetadata;
+import com.wetrade.ledger_api.states.IndexMetadata;
+import com.wetrade.ledger_api.states.StateMetadata;
+
+/**
+ * Works out the CouchDB indexes a state class needs and writes them out in the layout
+ * Fabric installs from a chaincode package.
+ *
+ * The world state gets an index on hash, used by getByHash, and one per Indexed index
+ * with the fields in index order. Each collection gets an index per Private field stored
+ * in it. Fields private to every collection are indexed in each collection the class
+ * names elsewhere and in each collection passed to write, which should be given every
+ * collection in the chaincode's collection config.
+ *
+ * QueryHandler hints at the same indexes for lists that call StateList.useIndexHints, so
+ * run write over every state class those lists hold and package the output with the
+ * chaincode. It writes META-INF/statedb/couchdb/indexes and
+ * META-INF/statedb/couchdb/collections/name/indexes under the given directory. The
+ * generateCouchDBIndexes Gradle task runs it at build time, see build.gradle.
+ */
+public final class CouchDBIndexes {
+    private static final ConcurrentMap<Class<?>, CouchDBIndexes> registry = new ConcurrentHashMap<Class<?>, CouchDBIndexes>();
+
+    public static CouchDBIndexes forClass(Class<?> clazz) {
+        CouchDBIndexes indexes = registry.get(clazz);
+
+        if (indexes == null) {
+            indexes = new CouchDBIndexes(clazz);
+            final CouchDBIndexes existing = registry.putIfAbsent(clazz, indexes);
+
+            if (existing != null) {
+                indexes = existing;
+            }
+        }
+
+        return indexes;
+    }
+
+    private final List<FieldMetadata> fields;
+    private final boolean inEveryCollection;
+    private final List<CouchDBIndex> worldStateIndexes;
+    private final Map<String, List<CouchDBIndex>> collectionIndexes;
+
+    private CouchDBIndexes(Class<?> clazz) {
+        final StateMetadata metadata = StateMetadata.forClass(clazz);
+
+        final ArrayList<CouchDBIndex> worldStateIndexes = new ArrayList<CouchDBIndex>();
+        worldStateIndexes.add(new CouchDBIndex(Collections.singletonList("hash")));
+
+        for (IndexMetadata index : metadata.getIndexes()) {
+            final ArrayList<String> fields = new ArrayList<String>();
+
+            for (FieldMetadata field : index.getFields()) {
+                fields.add(field.getName());
+            }
+
+            worldStateIndexes.add(new CouchDBIndex(fields));
+        }
+
+        final Set<String> namedCollections = new LinkedHashSet<String>();
+        boolean inEveryCollection = false;
+
+        for (FieldMetadata field : metadata.getFields()) {
+            if (field.isPrivate()) {
+                for (String collection : field.getPrivateRule().getEntries()) {
+                    if (collection.equals("*")) {
+                        inEveryCollection = true;
+                    } else {
+                        namedCollections.add(collection);
+                    }
+                }
+            }
+        }
+
+        final Map<String, List<CouchDBIndex>> collectionIndexes = new LinkedHashMap<String, List<CouchDBIndex>>();
+
+        for (String collection : namedCollections) {
+            collectionIndexes.put(collection, CouchDBIndexes.indexesIn(metadata.getFields(), collection));
+        }
+
+        this.fields = metadata.getFields();
+        this.inEveryCollection = inEveryCollection;
+        this.worldStateIndexes = Collections.unmodifiableList(worldStateIndexes);
+        this.collectionIndexes = Collections.unmodifiableMap(collectionIndexes);
+    }
+
+    public List<CouchDBIndex> getWorldStateIndexes() {
+        return this.worldStateIndexes;
+    }
+
+    public Map<String, List<CouchDBIndex>> getCollectionIndexes() {
+        return this.collectionIndexes;
+    }
+
+    public List<CouchDBIndex> getCollectionIndexes(String collection) {
+        final List<CouchDBIndex> indexes = this.collectionIndexes.get(collection);
+
+        return indexes != null ? indexes : Collections.<CouchDBIndex>emptyList();
+    }
+
+    /**
+     * The indexes the collection needs whether or not the class names it, for the fields
+     * stored in it by name or because they are private to every collection.
+     */
+    public List<CouchDBIndex> getIndexesIn(String collection) {
+        final List<CouchDBIndex> indexes = this.collectionIndexes.get(collection);
+
+        return indexes != null ? indexes : CouchDBIndexes.indexesIn(this.fields, collection);
+    }
+
+    /**
+     * Whether the class has fields private to every collection, which are only indexed in
+     * the collections passed to write.
+     */
+    public boolean isInEveryCollection() {
+        return this.inEveryCollection;
+    }
+
+    private static List<CouchDBIndex> indexesIn(List<FieldMetadata> fields, String collection) {
+        final ArrayList<CouchDBIndex> indexes = new ArrayList<CouchDBIndex>();
+
+        for (FieldMetadata field : fields) {
+            if (field.isIncludedIn(collection)) {
+                indexes.add(new CouchDBIndex(Collections.singletonList(field.getName())));
+            }
+        }
+
+        return Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * The widest index every field of which is in the selector, which CouchDB needs before
+     * it will use a JSON index. Null if none fit.
+     */
+    public static CouchDBIndex choose(List<CouchDBIndex> indexes, Collection<String> selectorFields) {
+        CouchDBIndex choice = null;
+
+        for (CouchDBIndex index : indexes) {
+            if (selectorFields.containsAll(index.getFields()) && (choice == null || index.getFields().size() > choice.getFields().size())) {
+                choice = index;
+            }
+        }
+
+        return choice;
+    }
+
+    public static void write(Path directory, Collection<Class<?>> classes) throws IOException {
+        CouchDBIndexes.write(directory, classes, Collections.<String>emptyList());
+    }
+
+    /**
+     * Writes the indexes for the classes, indexing fields private to every collection in
+     * each of the collections given as well as in those the classes name.
+     */
+    public static void write(Path directory, Collection<Class<?>> classes, Collection<String> collections) throws IOException {
+        final Path couchdb = directory.resolve("META-INF").resolve("statedb").resolve("couchdb");
+
+        for (Class<?> clazz : classes) {
+            final CouchDBIndexes indexes = CouchDBIndexes.forClass(clazz);
+
+            CouchDBIndexes.write(couchdb.resolve("indexes"), indexes.getWorldStateIndexes());
+
+            final Set<String> indexedCollections = new LinkedHashSet<String>(indexes.getCollectionIndexes().keySet());
+            indexedCollections.addAll(collections);
+
+            for (String collection : indexedCollections) {
+                CouchDBIndexes.write(couchdb.resolve("collections").resolve(collection).resolve("indexes"), indexes.getIndexesIn(collection));
+            }
+        }
+    }
+
+    private static void write(Path directory, List<CouchDBIndex> indexes) throws IOException {
+        if (indexes.isEmpty()) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+
+        for (CouchDBIndex index : indexes) {
+            final byte[] json = index.toJSON().toString(2).getBytes(StandardCharsets.UTF_8);
+            Files.write(directory.resolve(index.getName() + ".json"), json);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.wetrade.ledger_api.handling;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+
+/**
+ * Limits a key's history to a time window and, or, a set of transactions. The window
+ * includes from and excludes to, either may be null to leave that side open. Deletions
+ * have no state to return and are always left out.
+ */
+public class HistoryFilter {
+    private Instant from;
+    private Instant to;
+    private Set<String> txIds;
+    private boolean withoutRepeats;
+
+    public HistoryFilter between(Instant from, Instant to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    public HistoryFilter txIds(String... txIds) {
+        this.txIds = new HashSet<String>(Arrays.asList(txIds));
+        return this;
+    }
+
+    /**
+     * Drops versions with the same content as one already returned by the read, compared
+     * by the SHA-256 of the stored payload, so fewer entries come back than the history
+     * holds. Which copy is kept depends on the order the history is read in. The digests
+     * of the versions returned are held until the read ends. Without this every version is
+     * returned, repeated payloads are still only read once.
+     */
+    public HistoryFilter withoutRepeats() {
+        this.withoutRepeats = true;
+        return this;
+    }
+
+    // per read, as withoutRepeats has to remember what it has returned
+    Matcher matcher() {
+        return new Matcher();
+    }
+
+    private boolean inWindow(KeyModification modification) {
+        if (modification.isDeleted()) {
+            return false;
+        }
+
+        final Instant timestamp = modification.getTimestamp();
+
+        if (this.from != null && timestamp.isBefore(this.from)) {
+            return false;
+        }
+
+        if (this.to != null && !timestamp.isBefore(this.to)) {
+            return false;
+        }
+
+        return this.txIds == null || this.txIds.contains(modification.getTxId());
+    }
+
+    final class Matcher {
+        private final Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        private MessageDigest digest;
+
+        private Matcher() {}
+
+        boolean matches(KeyModification modification) {
+            if (!HistoryFilter.this.inWindow(modification)) {
+                return false;
+            }
+
+            return !HistoryFilter.this.withoutRepeats || this.seen.add(ByteBuffer.wrap(this.digest(modification.getValue())));
+        }
+
+        private byte[] digest(byte[] value) {
+            if (this.digest == null) {
+                try {
+                    this.digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException("SHA-256 not available. " + e.getMessage());
+                }
+            }
+
+            return this.digest.digest(value);
+        }
+    }
+}
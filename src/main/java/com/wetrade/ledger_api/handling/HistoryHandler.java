@@ -0,0 +1,134 @@
+package com.wetrade.ledger_api.handling;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+
+/**
+ * Reads the history of a key lazily, without decoding anything.
+ *
+ * Fabric 1.4 peers return history oldest first and later versions newest first. Entry
+ * timestamps are set by the submitting client, so they can't be relied on to tell which,
+ * and the order is given instead. The whole history is always read, except that latest
+ * stops after the first count entries when they come newest first.
+ */
+public class HistoryHandler {
+    private String ledgerKey;
+    private Context ctx;
+    private boolean newestFirst;
+
+    public HistoryHandler(String ledgerKey, Context ctx) {
+        this(ledgerKey, ctx, false);
+    }
+
+    public HistoryHandler(String ledgerKey, Context ctx, boolean newestFirst) {
+        this.ledgerKey = ledgerKey;
+        this.ctx = ctx;
+        this.newestFirst = newestFirst;
+    }
+
+    /**
+     * The entries passing the filter in the order the ledger returns them. The underlying
+     * iterator is closed when the stream is closed or runs out.
+     */
+    public Stream<KeyModification> stream(HistoryFilter filter) {
+        final HistoryIterator iterator = new HistoryIterator(this.ctx.getStub().getHistoryForKey(this.ledgerKey), filter);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(iterator::close);
+    }
+
+    /**
+     * The count most recent entries passing the filter, newest first.
+     */
+    public List<KeyModification> latest(int count, HistoryFilter filter) {
+        if (count <= 0) {
+            return Collections.<KeyModification>emptyList();
+        }
+
+        final HistoryIterator iterator = new HistoryIterator(this.ctx.getStub().getHistoryForKey(this.ledgerKey), filter);
+        final ArrayDeque<KeyModification> latest = new ArrayDeque<KeyModification>();
+
+        try {
+            while (iterator.hasNext()) {
+                if (this.newestFirst) {
+                    latest.addLast(iterator.next());
+
+                    if (latest.size() == count) {
+                        break;
+                    }
+                } else {
+                    latest.addFirst(iterator.next());
+
+                    if (latest.size() > count) {
+                        latest.removeLast();
+                    }
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+
+        return new ArrayList<KeyModification>(latest);
+    }
+
+    private static class HistoryIterator implements Iterator<KeyModification> {
+        private final Iterable<KeyModification> values;
+        private final Iterator<KeyModification> iterator;
+        private final HistoryFilter.Matcher matcher;
+        private KeyModification next;
+        private boolean closed;
+
+        private HistoryIterator(Iterable<KeyModification> values, HistoryFilter filter) {
+            this.values = values;
+            this.iterator = values.iterator();
+            this.matcher = (filter != null ? filter : new HistoryFilter()).matcher();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && !this.closed && this.iterator.hasNext()) {
+                final KeyModification modification = this.iterator.next();
+
+                if (this.matcher.matches(modification)) {
+                    this.next = modification;
+                }
+            }
+
+            if (this.next != null) {
+                return true;
+            }
+
+            this.close();
+            return false;
+        }
+
+        @Override
+        public KeyModification next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final KeyModification modification = this.next;
+            this.next = null;
+            return modification;
+        }
+
+        private void close() {
+            if (!this.closed) {
+                this.closed = true;
+                QueryResults.close(this.values);
+            }
+        }
+    }
+}
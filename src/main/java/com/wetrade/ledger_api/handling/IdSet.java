@@ -0,0 +1,146 @@
+package com.wetrade.ledger_api.handling;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of ledger keys found by a query. The world state keys are sorted once
+ * into a Table and numbered by their position in it, and sets hold the numbers as a
+ * sorted int array. That takes a few bytes per key on top of the keys the query already
+ * holds, and intersecting two sets is a single pass over both.
+ *
+ * Only world state keys are numbered. Keys from collection queries are looked up in the
+ * table when intersecting, and any the world state didn't return are dropped, they could
+ * never be in the result.
+ */
+final class IdSet {
+    private static final int[] NONE = new int[0];
+    private static final IdSet EMPTY = new IdSet(new Table(new String[0]), NONE);
+
+    private final Table table;
+    private final int[] ids;
+
+    private IdSet(Table table, int[] ids) {
+        this.table = table;
+        this.ids = ids;
+    }
+
+    static IdSet empty() {
+        return EMPTY;
+    }
+
+    // every one of the world state keys, numbering them
+    static IdSet of(Collection<String> worldStateKeys) {
+        final String[] keys = worldStateKeys.toArray(new String[worldStateKeys.size()]);
+        Arrays.sort(keys);
+
+        // drop duplicates in place
+        int unique = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (unique == 0 || !keys[unique - 1].equals(keys[i])) {
+                keys[unique++] = keys[i];
+            }
+        }
+
+        final int[] ids = new int[unique];
+
+        for (int i = 0; i < unique; i++) {
+            ids[i] = i;
+        }
+
+        return new IdSet(new Table(unique == keys.length ? keys : Arrays.copyOf(keys, unique)), ids);
+    }
+
+    IdSet intersect(Collection<String> keys) {
+        final int[] found = new int[keys.size()];
+        int size = 0;
+
+        for (String key : keys) {
+            final int id = this.table.find(key);
+
+            if (id >= 0) {
+                found[size++] = id;
+            }
+        }
+
+        Arrays.sort(found, 0, size);
+
+        final int[] intersection = new int[Math.min(size, this.ids.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < size && j < this.ids.length) {
+            if (found[i] < this.ids[j]) {
+                i++;
+            } else if (found[i] > this.ids[j]) {
+                j++;
+            } else {
+                intersection[count++] = found[i];
+
+                // skip repeats of the same key
+                while (i < size && found[i] == this.ids[j]) {
+                    i++;
+                }
+
+                j++;
+            }
+        }
+
+        if (count == this.ids.length) {
+            return this;
+        }
+
+        return new IdSet(this.table, count == 0 ? NONE : Arrays.copyOf(intersection, count));
+    }
+
+    boolean contains(String key) {
+        final int id = this.table.find(key);
+
+        return id >= 0 && Arrays.binarySearch(this.ids, id) >= 0;
+    }
+
+    boolean isEmpty() {
+        return this.ids.length == 0;
+    }
+
+    int size() {
+        return this.ids.length;
+    }
+
+    // in sorted order rather than the order the world state returned them
+    List<String> keys() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return IdSet.this.table.key(IdSet.this.ids[index]);
+            }
+
+            @Override
+            public int size() {
+                return IdSet.this.ids.length;
+            }
+        };
+    }
+
+    private static final class Table {
+        private final String[] keys;
+
+        private Table(String[] keys) {
+            this.keys = keys;
+        }
+
+        int find(String key) {
+            final int id = Arrays.binarySearch(this.keys, key);
+
+            return id >= 0 ? id : -1;
+        }
+
+        String key(int id) {
+            return this.keys[id];
+        }
+    }
+}
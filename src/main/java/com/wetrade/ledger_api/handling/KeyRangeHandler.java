@@ -0,0 +1,240 @@
+package com.wetrade.ledger_api.handling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.protos.peer.ChaincodeShim.QueryResponseMetadata;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+
+/**
+ * Reads states by key instead of by rich query, so it works on LevelDB as well as CouchDB
+ * and never touches a CouchDB index.
+ *
+ * The shim won't range scan composite keys, so a range is read as a partial key scan over
+ * the key parts the start and end have in common. Keys before the start are skipped and
+ * the scan stops at the first key at or past the end, comparing keys in the ledger's
+ * UTF-8 byte order. Like getStateByRange the start is inclusive and the end exclusive, and
+ * a null or empty bound leaves that side open.
+ *
+ * The stream forms can only start at the common parts, so bounds that differ in their
+ * first part read every key in the list up to the start key. The page forms start at the
+ * start key, since a range scan's bookmark is the key to carry on from, but paginated
+ * reads can't be mixed with writes in a transaction.
+ *
+ * As with queries, results are the world state documents that also have an entry in every
+ * requested collection holding data for the range, and collections holding nothing are left
+ * out of the collections handed to the decoder.
+ */
+public class KeyRangeHandler {
+    private String listName;
+    private String[] collections;
+    private Context ctx;
+
+    public KeyRangeHandler(String listName, String[] collections, Context ctx) {
+        this.listName = listName;
+        this.collections = collections;
+        this.ctx = ctx;
+    }
+
+    public <R> Stream<R> partialKey(String[] keyParts, BiFunction<byte[][], String[], R> decoder) {
+        return this.range(keyParts, null, null, decoder);
+    }
+
+    public <R> Stream<R> range(String[] startKeyParts, String[] endKeyParts, BiFunction<byte[][], String[], R> decoder) {
+        final String[] prefixParts = KeyRangeHandler.commonParts(startKeyParts, endKeyParts);
+
+        return this.range(prefixParts, this.boundKey(startKeyParts), this.boundKey(endKeyParts), decoder);
+    }
+
+    /**
+     * The raw world state entries for a partial key, for keys that are not states such as
+     * index entries.
+     */
+    public Stream<KeyValue> partialKeyEntries(String[] keyParts) {
+        final CompositeKey prefix = this.ctx.getStub().createCompositeKey(this.listName, keyParts);
+
+        return QueryResults.stream(this.ctx.getStub().getStateByPartialCompositeKey(prefix));
+    }
+
+    public Stream<KeyValue> rangeEntries(String[] startKeyParts, String[] endKeyParts) {
+        final CompositeKey prefix = this.ctx.getStub().createCompositeKey(this.listName, KeyRangeHandler.commonParts(startKeyParts, endKeyParts));
+
+        return QueryResults.stream(this.ctx.getStub().getStateByPartialCompositeKey(prefix), this.boundKey(startKeyParts), this.boundKey(endKeyParts));
+    }
+
+    public <R> QueryPage<R> partialKeyPage(String[] keyParts, int pageSize, String bookmark, BiFunction<byte[][], String[], R> decoder) {
+        return this.rangePage(keyParts, null, null, pageSize, bookmark, decoder);
+    }
+
+    /**
+     * One page of a range. Pages start at the start key even when the bounds have no parts
+     * in common, and stop at the end key, so a page only comes back short at the end of the
+     * range. The bookmark is empty once the end of the range has been reached.
+     */
+    public <R> QueryPage<R> rangePage(String[] startKeyParts, String[] endKeyParts, int pageSize, String bookmark, BiFunction<byte[][], String[], R> decoder) {
+        final String[] prefixParts = KeyRangeHandler.commonParts(startKeyParts, endKeyParts);
+
+        return this.rangePage(prefixParts, this.boundKey(startKeyParts), this.boundKey(endKeyParts), pageSize, bookmark, decoder);
+    }
+
+    private <R> Stream<R> range(String[] prefixParts, String startKey, String endKey, BiFunction<byte[][], String[], R> decoder) {
+        final ChaincodeStub stub = this.ctx.getStub();
+        final CompositeKey prefix = stub.createCompositeKey(this.listName, prefixParts);
+
+        final ArrayList<String> usedCollections = new ArrayList<String>();
+        final List<Map<String, byte[]>> privateResults = new ArrayList<Map<String, byte[]>>();
+
+        for (String collection : this.collections) {
+            final Map<String, byte[]> collectionResult = new LinkedHashMap<String, byte[]>();
+
+            try (Stream<KeyValue> values = QueryResults.stream(stub.getPrivateDataByPartialCompositeKey(collection, prefix), startKey, endKey)) {
+                values.forEach((value) -> collectionResult.put(value.getKey(), value.getValue()));
+            } catch (Exception e) {
+                continue;
+            }
+
+            if (collectionResult.size() > 0) {
+                usedCollections.add(collection);
+                privateResults.add(collectionResult);
+            }
+        }
+
+        final String[] used = usedCollections.toArray(new String[usedCollections.size()]);
+
+        return QueryResults.stream(stub.getStateByPartialCompositeKey(prefix), startKey, endKey)
+            .map((value) -> QueryResults.documents(value.getKey(), value.getValue(), privateResults))
+            .filter((documents) -> documents != null)
+            .map((documents) -> decoder.apply(documents, used));
+    }
+
+    private <R> QueryPage<R> rangePage(String[] prefixParts, String startKey, String endKey, int pageSize, String bookmark, BiFunction<byte[][], String[], R> decoder) {
+        final ChaincodeStub stub = this.ctx.getStub();
+        final CompositeKey prefix = stub.createCompositeKey(this.listName, prefixParts);
+
+        // a range scan's bookmark is the key the next page starts at, so the first page starts at
+        // the start key rather than at the start of the prefix
+        final String startAt = bookmark == null || bookmark.isEmpty() ? (startKey == null ? "" : startKey) : bookmark;
+        final QueryResultsIteratorWithMetadata<KeyValue> values = stub.getStateByPartialCompositeKeyWithPagination(prefix, pageSize, startAt);
+
+        final Map<String, byte[]> worldStateResult = new LinkedHashMap<String, byte[]>();
+        final QueryResponseMetadata metadata;
+        boolean pastEnd = false;
+
+        try {
+            for (KeyValue value : values) {
+                if (endKey != null && KeyRangeHandler.compareKeys(value.getKey(), endKey) >= 0) {
+                    pastEnd = true;
+                    break;
+                }
+
+                if (startKey == null || KeyRangeHandler.compareKeys(value.getKey(), startKey) >= 0) {
+                    worldStateResult.put(value.getKey(), value.getValue());
+                }
+            }
+
+            metadata = values.getMetadata();
+        } finally {
+            QueryResults.close(values);
+        }
+
+        final String nextBookmark = pastEnd || metadata == null ? "" : metadata.getBookmark();
+        final int fetchedRecordsCount = metadata != null ? metadata.getFetchedRecordsCount() : worldStateResult.size();
+
+        // private data can't be paged, a page is small enough to read key by key
+        final ArrayList<String> usedCollections = new ArrayList<String>();
+        final List<Map<String, byte[]>> privateResults = new ArrayList<Map<String, byte[]>>();
+
+        for (String collection : this.collections) {
+            final Map<String, byte[]> collectionResult = new LinkedHashMap<String, byte[]>();
+
+            try {
+                for (String key : worldStateResult.keySet()) {
+                    final byte[] privateData = stub.getPrivateData(collection, key);
+
+                    if (privateData != null && privateData.length > 0) {
+                        collectionResult.put(key, privateData);
+                    }
+                }
+            } catch (Exception e) {
+                continue;
+            }
+
+            if (collectionResult.size() > 0) {
+                usedCollections.add(collection);
+                privateResults.add(collectionResult);
+            }
+        }
+
+        final String[] used = usedCollections.toArray(new String[usedCollections.size()]);
+        final ArrayList<R> results = new ArrayList<R>();
+
+        for (Map.Entry<String, byte[]> entry : worldStateResult.entrySet()) {
+            final byte[][] documents = QueryResults.documents(entry.getKey(), entry.getValue(), privateResults);
+
+            if (documents != null) {
+                results.add(decoder.apply(documents, used));
+            }
+        }
+
+        return new QueryPage<R>(results, nextBookmark, fetchedRecordsCount);
+    }
+
+    /**
+     * Compares keys the way the ledger orders them, by their UTF-8 bytes. That is code point
+     * order, which differs from String.compareTo for characters above U+FFFF, whose
+     * surrogates sort before U+E000 to U+FFFF in UTF-16.
+     */
+    public static int compareKeys(String a, String b) {
+        final int length = Math.min(a.length(), b.length());
+
+        for (int i = 0; i < length; i++) {
+            final char ca = a.charAt(i);
+            final char cb = b.charAt(i);
+
+            if (ca != cb) {
+                return KeyRangeHandler.codePointOrder(ca) - KeyRangeHandler.codePointOrder(cb);
+            }
+        }
+
+        return a.length() - b.length();
+    }
+
+    // moves surrogates above the rest of the BMP, the first differing char decides the order
+    private static int codePointOrder(char c) {
+        if (c >= '\uD800' && c <= '\uDFFF') {
+            return c + 0x2000;
+        }
+
+        return c >= '\uE000' ? c - 0x800 : c;
+    }
+
+    private String boundKey(String[] keyParts) {
+        if (keyParts == null || keyParts.length == 0) {
+            return null;
+        }
+
+        return this.ctx.getStub().createCompositeKey(this.listName, keyParts).toString();
+    }
+
+    private static String[] commonParts(String[] startKeyParts, String[] endKeyParts) {
+        if (startKeyParts == null || endKeyParts == null) {
+            return new String[] {};
+        }
+
+        int common = 0;
+        while (common < startKeyParts.length && common < endKeyParts.length && startKeyParts[common].equals(endKeyParts[common])) {
+            common++;
+        }
+
+        return Arrays.copyOf(startKeyParts, common);
+    }
+}
@@ -0,0 +1,41 @@
+package com.wetrade.ledger_api.handling;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * The world state document for a result with its private data documents laid over it,
+ * kept as the raw bytes read from the ledger. Later documents override properties of the
+ * same name in earlier ones, the same order deserialization reads them in, so the layers
+ * can be handed straight to it without building a merged copy first.
+ */
+public class MergedDocument {
+    private final byte[][] layers;
+
+    public MergedDocument(byte[]... layers) {
+        this.layers = layers;
+    }
+
+    public byte[][] getLayers() {
+        return this.layers;
+    }
+
+    /**
+     * Builds the merged document as JSON, parsing every layer. Only needed by code that
+     * wants to look at the properties itself.
+     */
+    public JSONObject toJSON() {
+        final JSONObject json = new JSONObject(new String(this.layers[0], StandardCharsets.UTF_8));
+
+        for (int i = 1; i < this.layers.length; i++) {
+            final JSONObject layer = new JSONObject(new String(this.layers[i], StandardCharsets.UTF_8));
+
+            for (String jsonKey : layer.keySet()) {
+                json.put(jsonKey, layer.get(jsonKey));
+            }
+        }
+
+        return json;
+    }
+}
@@ -2,133 +2,341 @@ package com.wetrade.ledger_api.handling;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
 
 import com.wetrade.ledger_api.annotations.Private;
 import com.wetrade.ledger_api.collections.BooleanRulesHandler;
+import com.wetrade.ledger_api.collections.CompiledRule;
 import com.wetrade.ledger_api.states.State;
 
 import org.hyperledger.fabric.Logger;
 import org.hyperledger.fabric.contract.Context;
-import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.protos.peer.ChaincodeShim.QueryResponseMetadata;
 import org.hyperledger.fabric.shim.ledger.KeyValue;
 import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
 import org.json.JSONArray;
 import org.json.JSONObject;
 public class QueryHandler<T extends State> {
+    private static final String MAX_UNICODE_RUNE = "\udbff\udfff";
+    private static final String[] PASS_THROUGH_OPTIONS = new String[] {"sort", "limit", "fields", "use_index"};
+
     protected final Logger logger = Logger.getLogger(QueryHandler.class);
     private Map<String, Object> collectionQueries;
     private String[] collections;
     private Context ctx;
 
     public QueryHandler(JSONObject query, String listName, String[] collections, Context ctx, Class<? extends T> supportedClass) {
+        this(query, listName, collections, ctx, supportedClass, false);
+    }
+
+    /**
+     * With indexHints the generated queries get a use_index hint at the CouchDB index
+     * CouchDBIndexes would generate for them, which has to be packaged with the chaincode.
+     */
+    public QueryHandler(JSONObject query, String listName, String[] collections, Context ctx, Class<? extends T> supportedClass, boolean indexHints) {
         this.collections = collections;
         this.ctx = ctx;
-        this.collectionQueries = this.parseQuery(query, listName, collections, supportedClass);
+        this.collectionQueries = this.parseQuery(query, listName, collections, supportedClass, indexHints);
     }
 
     public QueryResponse execute() {
-        ArrayList<Map<String, JSONObject>> queryResults = new ArrayList<Map<String, JSONObject>>();
+        final Matches matches = this.match();
 
-        ChaincodeStub stub = this.ctx.getStub();
+        if (matches.ids.isEmpty()) {
+            return QueryResponse.ofDocuments(new String[] {}, new HashMap<String, MergedDocument>());
+        }
 
-        ArrayList<String> usedCollections = new ArrayList<String>();
+        final String[] usedCollections = matches.usedCollections(this.collections);
+        final List<Map<String, byte[]>> privateResults = matches.privateResults(usedCollections);
+        final Map<String, MergedDocument> finalResult = new LinkedHashMap<String, MergedDocument>();
+
+        for (Map.Entry<String, byte[]> entry : matches.worldState.entrySet()) {
+            if (matches.ids.contains(entry.getKey())) {
+                finalResult.put(entry.getKey(), new MergedDocument(QueryResults.documents(entry.getKey(), entry.getValue(), privateResults)));
+            }
+        }
 
+        return QueryResponse.ofDocuments(usedCollections, finalResult);
+    }
+
+    /**
+     * Runs the query lazily. The decoder is given the world state document followed by any
+     * private documents for a result, along with the collections those came from, and is
+     * only called as the stream is consumed. The underlying iterator is closed when the
+     * stream is closed or runs out.
+     *
+     * With private collections it is not lazy. The world state documents are needed up
+     * front for their keys to limit the private queries, so they are kept from that one
+     * query, the same as execute, and only the decoding happens as the stream is consumed.
+     */
+    public <R> Stream<R> stream(BiFunction<byte[][], String[], R> decoder) {
+        if (this.collections.length == 0) {
+            final String worldStateQueryString = collectionQueries.get("worldState").toString();
+
+            return QueryResults.stream(this.ctx.getStub().getQueryResult(worldStateQueryString))
+                .map((value) -> decoder.apply(new byte[][] {value.getValue()}, new String[] {}));
+        }
+
+        final Matches matches = this.match();
+
+        if (matches.ids.isEmpty()) {
+            return Stream.empty();
+        }
+
+        final String[] used = matches.usedCollections(this.collections);
+        final List<Map<String, byte[]>> privateResults = matches.privateResults(used);
+
+        return matches.worldState.entrySet().stream()
+            .filter((entry) -> matches.ids.contains(entry.getKey()))
+            .map((entry) -> decoder.apply(QueryResults.documents(entry.getKey(), entry.getValue(), privateResults), used));
+    }
+
+    /**
+     * Runs one page of the query using the world state pagination support. Private data
+     * queries can't be paginated, so they are limited to the keys on the page, which means
+     * a page can hold fewer results than the page size even when there are more to come.
+     * Keep going until the bookmark comes back empty or the fetched count is zero.
+     */
+    public <R> QueryPage<R> page(int pageSize, String bookmark, BiFunction<byte[][], String[], R> decoder) {
         final String worldStateQueryString = collectionQueries.get("worldState").toString();
-        final QueryResultsIterator<KeyValue> worldStateValues = this.ctx.getStub().getQueryResult(worldStateQueryString);
-        queryResults.add(this.iterateIntoMap(worldStateValues));
+        final QueryResultsIteratorWithMetadata<KeyValue> worldStateValues = this.ctx.getStub()
+            .getQueryResultWithPagination(worldStateQueryString, pageSize, bookmark == null ? "" : bookmark);
+
+        final Map<String, byte[]> worldStateResult;
+        final QueryResponseMetadata metadata;
+
+        try {
+            worldStateResult = this.iterateIntoMap(worldStateValues);
+            metadata = worldStateValues.getMetadata();
+        } finally {
+            QueryResults.close(worldStateValues);
+        }
 
-        Set<String> foundIds = queryResults.get(0).keySet();
+        final String nextBookmark = metadata != null ? metadata.getBookmark() : "";
+        final int fetchedRecordsCount = metadata != null ? metadata.getFetchedRecordsCount() : worldStateResult.size();
 
-        for (String collection : this.collections) {
-            JSONObject collectionJSON = (JSONObject) collectionQueries.get(collection);
+        final Map<String, Map<String, byte[]>> privateResultsByCollection = new HashMap<String, Map<String, byte[]>>();
+        final IdSet ids = this.matchCollections(privateResultsByCollection, IdSet.of(worldStateResult.keySet()),
+            QueryPlanner.order(this.collections, this.collectionQueries));
 
-            // todo update keys and remove those that are already in the map and don't exist here
-            String idLimiter = new JSONArray(foundIds).toString();
+        final ArrayList<R> results = new ArrayList<R>();
 
-            collectionJSON.getJSONObject("selector").put("_id", new JSONObject("{\"$in\": " + idLimiter + "}"));
-            collectionQueries.put(collection, collectionJSON);
+        if (!ids.isEmpty()) {
+            final Matches matches = new Matches();
+            matches.privateResults = privateResultsByCollection;
 
-            final String queryString = collectionJSON.toString();
+            final String[] used = matches.usedCollections(this.collections);
+            final List<Map<String, byte[]>> privateResults = matches.privateResults(used);
 
-            QueryResultsIterator<KeyValue> queryResponse = null;
+            for (Map.Entry<String, byte[]> entry : worldStateResult.entrySet()) {
+                final byte[][] documents = QueryResults.documents(entry.getKey(), entry.getValue(), privateResults);
 
-            try {
-                queryResponse = stub.getPrivateDataQueryResult(collection, queryString);
-            } catch (Exception e) {
-                continue;
+                if (documents != null) {
+                    results.add(decoder.apply(documents, used));
+                }
             }
+        }
 
-            Map<String, JSONObject> queryResult = this.iterateIntoMap(queryResponse);
-            if(queryResult.size() == 0) {
-                continue;
-            } else {
-                usedCollections.add(collection);
+        return new QueryPage<R>(results, nextBookmark, fetchedRecordsCount);
+    }
+
+    /**
+     * Runs the world state and collection queries in the order QueryPlanner picks. A
+     * collection with a predicate more selective than the world state's goes first and the
+     * world state is limited to the ids it found, the other collections then run most
+     * selective first, each limited to the ids still in the running. Collections that find
+     * nothing are skipped as before.
+     */
+    private Matches match() {
+        final JSONObject worldStateQuery = (JSONObject) this.collectionQueries.get("worldState");
+        final String lead = QueryPlanner.lead(worldStateQuery, this.collections, this.collectionQueries);
+        final List<String> remaining = new ArrayList<String>(QueryPlanner.order(this.collections, this.collectionQueries));
+
+        final Matches matches = new Matches();
+        matches.ids = IdSet.empty();
+
+        if (lead != null) {
+            remaining.remove(lead);
+
+            final Map<String, byte[]> leadResult = this.queryCollection(lead, this.collectionQuery(lead, null));
+
+            if (!leadResult.isEmpty()) {
+                matches.worldState = this.queryWorldState(this.limitIds(worldStateQuery, leadResult.keySet()).toString());
+
+                if (!matches.worldState.isEmpty()) {
+                    matches.privateResults.put(lead, leadResult);
+                }
             }
 
-            foundIds = queryResult.keySet();
-            queryResults.add(queryResult);
+            // nothing in the lead collection matched anything in the world state, so it is
+            // skipped and the rest have to satisfy the rule without it
+            if (matches.privateResults.isEmpty() && !this.canMatchCollectionsRule(matches.privateResults.keySet(), remaining)) {
+                return matches;
+            }
         }
 
-        if (collectionQueries.containsKey("privateCollectionsRule")) {
-            BooleanRulesHandler collectionHandler = new BooleanRulesHandler((String) collectionQueries.get("privateCollectionsRule"), usedCollections.toArray(new String[]{}));
-            if (!collectionHandler.evaluate()) {
-                return new QueryResponse(new String[] {}, new HashMap<String, JSONObject>());
-            }
+        if (matches.privateResults.isEmpty()) {
+            matches.worldState = this.queryWorldState(worldStateQuery.toString());
         }
 
-        Set<String> matchingIds = queryResults.get(0).keySet();
+        matches.ids = this.matchCollections(matches.privateResults, IdSet.of(matches.worldState.keySet()), remaining);
 
-        if (queryResults.size() > 1) {
-            for (int i = 1; i < queryResults.size(); i++) {
-                Set<String> queryIds = queryResults.get(i).keySet();
+        return matches;
+    }
+
+    /**
+     * Queries each collection limited to the ids still in the running, skipping any that
+     * return nothing. Stops with no ids as soon as none are left or the collections that
+     * could still turn up results can no longer satisfy the collections rule.
+     */
+    private IdSet matchCollections(Map<String, Map<String, byte[]>> privateResults, IdSet ids, List<String> collections) {
+        for (int i = 0; i <= collections.size(); i++) {
+            if (ids.isEmpty() || !this.canMatchCollectionsRule(privateResults.keySet(), collections.subList(i, collections.size()))) {
+                return IdSet.empty();
+            }
+
+            if (i == collections.size()) {
+                break;
+            }
+
+            final String collection = collections.get(i);
+            final Map<String, byte[]> queryResult = this.queryCollection(collection, this.collectionQuery(collection, ids));
 
-                matchingIds.retainAll(queryIds);
+            if (queryResult.isEmpty()) {
+                continue;
             }
+
+            privateResults.put(collection, queryResult);
+            ids = ids.intersect(queryResult.keySet());
         }
 
-        Map<String, JSONObject> finalResult = new HashMap<String, JSONObject>();
+        return ids;
+    }
 
-        for (String id : matchingIds) {
-            for (Map<String, JSONObject> queryResult : queryResults) {
-                JSONObject json = queryResult.get(id);
+    // null ids keeps the bounds from parseQuery
+    private JSONObject collectionQuery(String collection, IdSet ids) {
+        final JSONObject collectionQuery = (JSONObject) this.collectionQueries.get(collection);
 
-                if (finalResult.containsKey(id)) {
-                    final JSONObject existing = finalResult.get(id);
+        return ids != null ? this.limitIds(collectionQuery, ids.keys()) : collectionQuery;
+    }
 
-                    for (String jsonKey : JSONObject.getNames(existing)) {
-                        json.put(jsonKey, existing.get(jsonKey));
-                    }
-                }
+    /**
+     * Runs on the calling thread, the 1.4 shim handles one request per transaction at a
+     * time. A collection the query fails on, such as one the peer isn't a member of, comes
+     * back empty and is skipped like one that matched nothing, the same as get and range do.
+     */
+    private Map<String, byte[]> queryCollection(String collection, JSONObject collectionQuery) {
+        final QueryResultsIterator<KeyValue> queryResponse;
 
-                finalResult.put(id, json);
-            }
+        try {
+            queryResponse = this.ctx.getStub().getPrivateDataQueryResult(collection, collectionQuery.toString());
+        } catch (Exception e) {
+            return new LinkedHashMap<String, byte[]>();
         }
 
-        return new QueryResponse(usedCollections.toArray(new String[usedCollections.size()]), finalResult);
+        try {
+            return this.iterateIntoMap(queryResponse);
+        } finally {
+            QueryResults.close(queryResponse);
+        }
     }
 
-    private Map<String, JSONObject> iterateIntoMap(QueryResultsIterator<KeyValue> values) {
-        Map<String, JSONObject> resultMap = new HashMap<String, JSONObject>();
+    private Map<String, byte[]> queryWorldState(String queryString) {
+        final QueryResultsIterator<KeyValue> worldStateValues = this.ctx.getStub().getQueryResult(queryString);
 
-        for (KeyValue value : values) {
+        try {
+            return this.iterateIntoMap(worldStateValues);
+        } finally {
+            QueryResults.close(worldStateValues);
+        }
+    }
+
+    // copies as far down as the selector so the parsed queries are left as they were
+    private JSONObject limitIds(JSONObject query, Collection<String> ids) {
+        final JSONObject selector = query.getJSONObject("selector");
+
+        final JSONObject limitedSelector = new JSONObject(selector, JSONObject.getNames(selector));
+        limitedSelector.put("_id", new JSONObject().put("$in", new JSONArray(ids)));
+
+        final JSONObject limited = new JSONObject(query, JSONObject.getNames(query));
+        limited.put("selector", limitedSelector);
+
+        return limited;
+    }
+
+    private boolean matchesCollectionsRule(Collection<String> usedCollections) {
+        if (collectionQueries.containsKey("privateCollectionsRule")) {
+            final CompiledRule rule = BooleanRulesHandler.compile((String) collectionQueries.get("privateCollectionsRule"));
+            return rule.evaluate(usedCollections.toArray(new String[usedCollections.size()]));
+        }
+
+        return true;
+    }
 
-            final String data = value.getStringValue();
+    // the rules have no negation, so if they fail with every remaining collection counted as used they can't pass
+    private boolean canMatchCollectionsRule(Collection<String> usedCollections, List<String> remainingCollections) {
+        final ArrayList<String> possibleCollections = new ArrayList<String>(usedCollections);
+        possibleCollections.addAll(remainingCollections);
 
-            JSONObject json = new JSONObject(data);
+        return this.matchesCollectionsRule(possibleCollections);
+    }
+
+    private Map<String, byte[]> iterateIntoMap(Iterable<KeyValue> values) {
+        Map<String, byte[]> resultMap = new LinkedHashMap<String, byte[]>();
 
-            resultMap.put(value.getKey(), json);
+        for (KeyValue value : values) {
+            resultMap.put(value.getKey(), value.getValue());
         }
 
         return resultMap;
     }
 
-    private Map<String, Object> parseQuery(JSONObject query, String listName, String[] collections, Class<? extends T> clazz) {
+    private static class Matches {
+        private Map<String, byte[]> worldState = new LinkedHashMap<String, byte[]>();
+        private Map<String, Map<String, byte[]>> privateResults = new HashMap<String, Map<String, byte[]>>();
+        private IdSet ids;
+
+        // in the order the collections were given rather than the order they ran in
+        private String[] usedCollections(String[] collections) {
+            final ArrayList<String> used = new ArrayList<String>();
+
+            for (String collection : collections) {
+                if (this.privateResults.containsKey(collection)) {
+                    used.add(collection);
+                }
+            }
+
+            return used.toArray(new String[used.size()]);
+        }
+
+        private List<Map<String, byte[]>> privateResults(String[] used) {
+            final ArrayList<Map<String, byte[]>> results = new ArrayList<Map<String, byte[]>>();
+
+            for (String collection : used) {
+                results.add(this.privateResults.get(collection));
+            }
+
+            return results;
+        }
+    }
+
+
+    private Map<String, Object> parseQuery(JSONObject query, String listName, String[] collections, Class<? extends T> clazz, boolean indexHints) {
+        // every key in the list sits between its composite key prefix and the prefix followed by
+        // the highest code point, the same bounds a partial key scan uses, which the _id index can serve
+        final String keyPrefix = this.ctx.getStub().createCompositeKey(listName).toString();
+
         final JSONObject baseQuery = new JSONObject("{\"selector\": {}}");
         baseQuery.getJSONObject("selector").put("_id", new JSONObject());
-        baseQuery.getJSONObject("selector").getJSONObject("_id").put("$regex", ".*" + listName + ".*");
+        baseQuery.getJSONObject("selector").getJSONObject("_id").put("$gte", keyPrefix);
+        baseQuery.getJSONObject("selector").getJSONObject("_id").put("$lt", keyPrefix + MAX_UNICODE_RUNE);
 
         Map<String, Object> collectionQueries = new HashMap<String, Object>();
 
@@ -198,9 +406,36 @@ public class QueryHandler<T extends State> {
             collectionQueries.put("privateCollectionsRule", queryPrivateRule);
         }
 
+        if (indexHints) {
+            final CouchDBIndexes indexes = CouchDBIndexes.forClass(clazz);
+            this.addIndexHint((JSONObject) collectionQueries.get("worldState"), indexes.getWorldStateIndexes());
+
+            for (String collection : collections) {
+                this.addIndexHint((JSONObject) collectionQueries.get(collection), indexes.getCollectionIndexes(collection));
+            }
+        }
+
+        // options only make sense against the world state, limiting a collection query would drop matches
+        final JSONObject worldStateQuery = (JSONObject) collectionQueries.get("worldState");
+
+        for (String option : PASS_THROUGH_OPTIONS) {
+            if (query.has(option)) {
+                worldStateQuery.put(option, query.get(option));
+            }
+        }
+
         return collectionQueries;
     }
 
+    // only hints at indexes CouchDBIndexes generates for the class, and only ones CouchDB can use
+    private void addIndexHint(JSONObject query, List<CouchDBIndex> indexes) {
+        final CouchDBIndex index = CouchDBIndexes.choose(indexes, query.getJSONObject("selector").keySet());
+
+        if (index != null) {
+            query.put("use_index", index.toHint());
+        }
+    }
+
     private Field getDeclaredProperty(Class<?> clazz, String name) throws NoSuchFieldException {
         try {
             return clazz.getDeclaredField(name);
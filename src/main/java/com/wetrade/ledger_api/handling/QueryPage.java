@@ -0,0 +1,28 @@
+package com.wetrade.ledger_api.handling;
+
+import java.util.List;
+
+public class QueryPage<T> {
+
+    private List<T> results;
+    private String bookmark;
+    private int fetchedRecordsCount;
+
+    public QueryPage(List<T> results, String bookmark, int fetchedRecordsCount) {
+        this.results = results;
+        this.bookmark = bookmark;
+        this.fetchedRecordsCount = fetchedRecordsCount;
+    }
+
+    public List<T> getResults() {
+        return this.results;
+    }
+
+    public String getBookmark() {
+        return this.bookmark;
+    }
+
+    public int getFetchedRecordsCount() {
+        return this.fetchedRecordsCount;
+    }
+}
@@ -0,0 +1,117 @@
+package com.wetrade.ledger_api.handling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Orders the sub-queries of a query by how much of the list each is expected to match.
+ * There are no statistics to go on, so the estimate only looks at the shape of each
+ * selector: an equality keeps about 1 in 100 documents, $in 1 in 20, each range bound
+ * 3 in 10 and anything else 9 in 10, with the properties of a selector taken as
+ * independent. A selector with nothing but the _id bounds keeps everything.
+ */
+final class QueryPlanner {
+    static final double EQUALITY = 0.01;
+    static final double MEMBERSHIP = 0.05;
+    static final double RANGE = 0.3;
+    static final double OTHER = 0.9;
+
+    private QueryPlanner() {}
+
+    /**
+     * The collection to run before the world state, or null if the world state should go
+     * first. Only collections with a predicate of their own can lead, one without only
+     * tells us which states have private data.
+     */
+    static String lead(JSONObject worldStateQuery, String[] collections, Map<String, Object> collectionQueries) {
+        double best = QueryPlanner.estimate(worldStateQuery);
+        String lead = null;
+
+        for (String collection : collections) {
+            final JSONObject collectionQuery = (JSONObject) collectionQueries.get(collection);
+
+            if (!QueryPlanner.hasPredicates(collectionQuery)) {
+                continue;
+            }
+
+            final double estimate = QueryPlanner.estimate(collectionQuery);
+
+            if (estimate < best) {
+                best = estimate;
+                lead = collection;
+            }
+        }
+
+        return lead;
+    }
+
+    // most selective first, ties keep the order the collections were given in
+    static List<String> order(List<String> collections, Map<String, Object> collectionQueries) {
+        final ArrayList<String> ordered = new ArrayList<String>(collections);
+        ordered.sort(Comparator.comparingDouble((String collection) -> QueryPlanner.estimate((JSONObject) collectionQueries.get(collection))));
+
+        return ordered;
+    }
+
+    static List<String> order(String[] collections, Map<String, Object> collectionQueries) {
+        return QueryPlanner.order(Arrays.asList(collections), collectionQueries);
+    }
+
+    static boolean hasPredicates(JSONObject query) {
+        for (String property : query.getJSONObject("selector").keySet()) {
+            if (!property.equals("_id")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static double estimate(JSONObject query) {
+        final JSONObject selector = query.getJSONObject("selector");
+        double estimate = 1.0;
+
+        for (String property : selector.keySet()) {
+            if (!property.equals("_id")) {
+                estimate *= QueryPlanner.estimate(selector.get(property));
+            }
+        }
+
+        return estimate;
+    }
+
+    private static double estimate(Object condition) {
+        if (!(condition instanceof JSONObject)) {
+            return EQUALITY;
+        }
+
+        final JSONObject operators = (JSONObject) condition;
+        double estimate = 1.0;
+
+        for (String operator : operators.keySet()) {
+            switch (operator) {
+                case "$eq":
+                    estimate *= EQUALITY;
+                    break;
+                case "$in":
+                    estimate *= MEMBERSHIP;
+                    break;
+                case "$gt":
+                case "$gte":
+                case "$lt":
+                case "$lte":
+                    estimate *= RANGE;
+                    break;
+                default:
+                    estimate *= OTHER;
+            }
+        }
+
+        return estimate;
+    }
+}
@@ -1,5 +1,7 @@
 package com.wetrade.ledger_api.handling;
 
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.json.JSONObject;
@@ -8,17 +10,49 @@ public class QueryResponse {
 
     private String[] usedCollections;
     private Map<String, JSONObject> queryResult;
+    private Map<String, MergedDocument> documents;
 
     public QueryResponse(String[] usedCollections, Map<String, JSONObject> queryResult) {
         this.usedCollections = usedCollections;
         this.queryResult = queryResult;
     }
 
+    // a separate factory as the maps erase to the same constructor signature
+    public static QueryResponse ofDocuments(String[] usedCollections, Map<String, MergedDocument> documents) {
+        final QueryResponse response = new QueryResponse(usedCollections, (Map<String, JSONObject>) null);
+        response.documents = documents;
+
+        return response;
+    }
+
     public String[] getUsedCollections() {
         return this.usedCollections;
     }
 
+    /**
+     * The results as merged JSON, built from the documents the first time it is asked for.
+     */
     public Map<String, JSONObject> getQueryResult() {
+        if (this.queryResult == null) {
+            this.queryResult = new LinkedHashMap<String, JSONObject>();
+
+            for (Map.Entry<String, MergedDocument> entry : this.documents.entrySet()) {
+                this.queryResult.put(entry.getKey(), entry.getValue().toJSON());
+            }
+        }
+
         return this.queryResult;
     }
-}
\ No newline at end of file
+
+    public Map<String, MergedDocument> getDocuments() {
+        if (this.documents == null) {
+            this.documents = new LinkedHashMap<String, MergedDocument>();
+
+            for (Map.Entry<String, JSONObject> entry : this.queryResult.entrySet()) {
+                this.documents.put(entry.getKey(), new MergedDocument(entry.getValue().toString().getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        return this.documents;
+    }
+}
@@ -0,0 +1,116 @@
+package com.wetrade.ledger_api.handling;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+
+final class QueryResults {
+    private QueryResults() {}
+
+    static Stream<KeyValue> stream(Iterable<KeyValue> values) {
+        return QueryResults.stream(values, null, null);
+    }
+
+    /**
+     * Streams the results, skipping keys before startKey and stopping at the first key at or
+     * after endKey, either bound may be null. The iterator is closed when the stream is
+     * closed or when it runs out, so streams nobody closes don't leak.
+     */
+    static Stream<KeyValue> stream(Iterable<KeyValue> values, String startKey, String endKey) {
+        final ClosingIterator iterator = new ClosingIterator(values, startKey, endKey);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(iterator::close);
+    }
+
+    // the world state document then one per collection, null if a collection didn't match the key
+    static byte[][] documents(String key, byte[] worldState, List<Map<String, byte[]>> privateResults) {
+        final byte[][] documents = new byte[privateResults.size() + 1][];
+        documents[0] = worldState;
+
+        for (int i = 0; i < privateResults.size(); i++) {
+            documents[i + 1] = privateResults.get(i).get(key);
+
+            if (documents[i + 1] == null) {
+                return null;
+            }
+        }
+
+        return documents;
+    }
+
+    static void close(Object values) {
+        if (!(values instanceof AutoCloseable)) {
+            return;
+        }
+
+        try {
+            ((AutoCloseable) values).close();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to close query results. " + e.getMessage());
+        }
+    }
+
+    private static class ClosingIterator implements Iterator<KeyValue> {
+        private final Iterable<KeyValue> values;
+        private final Iterator<KeyValue> iterator;
+        private final String startKey;
+        private final String endKey;
+        private KeyValue next;
+        private boolean closed;
+
+        private ClosingIterator(Iterable<KeyValue> values, String startKey, String endKey) {
+            this.values = values;
+            this.iterator = values.iterator();
+            this.startKey = startKey;
+            this.endKey = endKey;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && !this.closed && this.iterator.hasNext()) {
+                final KeyValue value = this.iterator.next();
+
+                if (this.endKey != null && KeyRangeHandler.compareKeys(value.getKey(), this.endKey) >= 0) {
+                    break;
+                }
+
+                if (this.startKey == null || KeyRangeHandler.compareKeys(value.getKey(), this.startKey) >= 0) {
+                    this.next = value;
+                }
+            }
+
+            if (this.next != null) {
+                return true;
+            }
+
+            this.close();
+            return false;
+        }
+
+        @Override
+        public KeyValue next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final KeyValue value = this.next;
+            this.next = null;
+            return value;
+        }
+
+        private void close() {
+            if (!this.closed) {
+                this.closed = true;
+                QueryResults.close(this.values);
+            }
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package com.wetrade.ledger_api.serialization;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pull parser reading JSON tokens directly from UTF-8 bytes as they come off the ledger.
+ * Values are only decoded when asked for, anything else is skipped over in place.
+ * Not thread safe.
+ */
+public class JsonReader {
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private static final BigDecimal LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
+
+    private final byte[] data;
+    private final int limit;
+    private int position;
+
+    private int[] stack = new int[16];
+    private int stackSize;
+
+    // set by peek, the position is left on the first byte of the peeked token
+    private JsonToken peeked;
+
+    private char[] chars = new char[64];
+
+    public JsonReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public JsonReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+        this.stack[this.stackSize++] = EMPTY_DOCUMENT;
+    }
+
+    public JsonToken peek() {
+        if (this.peeked != null) {
+            return this.peeked;
+        }
+
+        final int scope = this.stack[this.stackSize - 1];
+
+        switch (scope) {
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT: {
+                int c = this.nextNonWhitespace();
+
+                if (c == '}') {
+                    this.position--;
+                    return this.peeked = JsonToken.END_OBJECT;
+                }
+
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw this.syntaxError("Expected ',' or '}'");
+                    }
+
+                    c = this.nextNonWhitespace();
+                }
+
+                if (c != '"') {
+                    throw this.syntaxError("Expected name");
+                }
+
+                this.position--;
+                return this.peeked = JsonToken.NAME;
+            }
+            case DANGLING_NAME:
+                if (this.nextNonWhitespace() != ':') {
+                    throw this.syntaxError("Expected ':'");
+                }
+
+                this.stack[this.stackSize - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_ARRAY:
+                this.stack[this.stackSize - 1] = NONEMPTY_ARRAY;
+
+                if (this.nextNonWhitespace() == ']') {
+                    this.position--;
+                    return this.peeked = JsonToken.END_ARRAY;
+                }
+
+                this.position--;
+                break;
+            case NONEMPTY_ARRAY: {
+                final int c = this.nextNonWhitespace();
+
+                if (c == ']') {
+                    this.position--;
+                    return this.peeked = JsonToken.END_ARRAY;
+                } else if (c != ',') {
+                    throw this.syntaxError("Expected ',' or ']'");
+                }
+
+                break;
+            }
+            case EMPTY_DOCUMENT:
+                this.stack[this.stackSize - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                return this.peeked = JsonToken.END_DOCUMENT;
+        }
+
+        final int c = this.nextNonWhitespace();
+        this.position--;
+
+        switch (c) {
+            case '{': return this.peeked = JsonToken.BEGIN_OBJECT;
+            case '[': return this.peeked = JsonToken.BEGIN_ARRAY;
+            case '"': return this.peeked = JsonToken.STRING;
+            case 't':
+            case 'f': return this.peeked = JsonToken.BOOLEAN;
+            case 'n': return this.peeked = JsonToken.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return this.peeked = JsonToken.NUMBER;
+                }
+
+                if (c == -1) {
+                    throw this.syntaxError("Unexpected end of input");
+                }
+
+                throw this.syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    public boolean hasNext() {
+        final JsonToken token = this.peek();
+
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+    }
+
+    public void beginObject() {
+        this.expect(JsonToken.BEGIN_OBJECT);
+        this.position++;
+        this.push(EMPTY_OBJECT);
+    }
+
+    public void endObject() {
+        this.expect(JsonToken.END_OBJECT);
+        this.position++;
+        this.stackSize--;
+    }
+
+    public void beginArray() {
+        this.expect(JsonToken.BEGIN_ARRAY);
+        this.position++;
+        this.push(EMPTY_ARRAY);
+    }
+
+    public void endArray() {
+        this.expect(JsonToken.END_ARRAY);
+        this.position++;
+        this.stackSize--;
+    }
+
+    public String nextName() {
+        this.expect(JsonToken.NAME);
+        final String name = this.readString();
+        this.stack[this.stackSize - 1] = DANGLING_NAME;
+        return name;
+    }
+
+    public String nextString() {
+        final JsonToken token = this.peek();
+
+        if (token == JsonToken.NUMBER) {
+            return this.nextNumber();
+        }
+
+        this.expect(JsonToken.STRING);
+        return this.readString();
+    }
+
+    public boolean nextBoolean() {
+        this.expect(JsonToken.BOOLEAN);
+
+        if (this.matches("true")) {
+            this.position += 4;
+            this.peeked = null;
+            return true;
+        } else if (this.matches("false")) {
+            this.position += 5;
+            this.peeked = null;
+            return false;
+        }
+
+        throw this.syntaxError("Expected boolean");
+    }
+
+    public void nextNull() {
+        this.expect(JsonToken.NULL);
+
+        if (!this.matches("null")) {
+            throw this.syntaxError("Expected null");
+        }
+
+        this.position += 4;
+        this.peeked = null;
+    }
+
+    /**
+     * The text of the next number exactly as written.
+     */
+    public String nextNumber() {
+        this.expect(JsonToken.NUMBER);
+        return this.readNumber();
+    }
+
+    public long nextLong() {
+        final JsonToken token = this.peek();
+
+        if (token == JsonToken.STRING) {
+            return Long.parseLong(this.readString());
+        }
+
+        this.expect(JsonToken.NUMBER);
+
+        final int start = this.position;
+        boolean negative = false;
+        long value = 0;
+        int index = start;
+
+        if (this.data[index] == '-') {
+            negative = true;
+            index++;
+        }
+
+        final int digitsStart = index;
+        while (index < this.limit && this.data[index] >= '0' && this.data[index] <= '9' && index - digitsStart < 18) {
+            value = value * 10 + (this.data[index] - '0');
+            index++;
+        }
+
+        if (index < this.limit && JsonReader.isNumberChar(this.data[index])) {
+            // fractional, exponent or too long to be safe, take the slow route
+            final BigDecimal number = new BigDecimal(this.readNumber());
+
+            if (number.compareTo(LONG_MIN) < 0 || number.compareTo(LONG_MAX) > 0) {
+                throw this.syntaxError("Expected a long but got " + number);
+            }
+
+            return number.longValue();
+        }
+
+        this.position = index;
+        this.peeked = null;
+        return negative ? -value : value;
+    }
+
+    public int nextInt() {
+        final long value = this.nextLong();
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw this.syntaxError("Expected an int but got " + value);
+        }
+
+        return (int) value;
+    }
+
+    public double nextDouble() {
+        final JsonToken token = this.peek();
+
+        if (token == JsonToken.STRING) {
+            return Double.parseDouble(this.readString());
+        }
+
+        return Double.parseDouble(this.nextNumber());
+    }
+
+    public BigDecimal nextBigDecimal() {
+        final JsonToken token = this.peek();
+
+        if (token == JsonToken.STRING) {
+            return new BigDecimal(this.readString());
+        }
+
+        return new BigDecimal(this.nextNumber());
+    }
+
+    public void skipValue() {
+        int depth = 0;
+
+        do {
+            switch (this.peek()) {
+                case BEGIN_OBJECT: this.beginObject(); depth++; break;
+                case BEGIN_ARRAY: this.beginArray(); depth++; break;
+                case END_OBJECT: this.endObject(); depth--; break;
+                case END_ARRAY: this.endArray(); depth--; break;
+                case NAME: this.skipString(); this.stack[this.stackSize - 1] = DANGLING_NAME; break;
+                case STRING: this.skipString(); break;
+                case NUMBER: this.skipNumber(); break;
+                case BOOLEAN: this.nextBoolean(); break;
+                case NULL: this.nextNull(); break;
+                default: throw this.syntaxError("Unexpected end of input");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Copies the encoded bytes of the next value, skipping over it.
+     */
+    public byte[] nextRawValue() {
+        this.peek();
+
+        final int start = this.position;
+        this.skipValue();
+
+        return Arrays.copyOfRange(this.data, start, this.position);
+    }
+
+    /**
+     * Reads the next value into the same object model org.json would have produced for it.
+     */
+    public Object readValue() {
+        switch (this.peek()) {
+            case BEGIN_OBJECT: {
+                final JSONObject object = new JSONObject();
+                this.beginObject();
+
+                while (this.hasNext()) {
+                    final String name = this.nextName();
+                    object.put(name, this.readValue());
+                }
+
+                this.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                final JSONArray array = new JSONArray();
+                this.beginArray();
+
+                while (this.hasNext()) {
+                    array.put(this.readValue());
+                }
+
+                this.endArray();
+                return array;
+            }
+            case STRING: return this.nextString();
+            case BOOLEAN: return this.nextBoolean();
+            case NULL: this.nextNull(); return JSONObject.NULL;
+            case NUMBER: return JsonReader.toNumber(this.nextNumber());
+            default: throw this.syntaxError("Expected value");
+        }
+    }
+
+    private static Number toNumber(String number) {
+        if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0 || number.equals("-0")) {
+            if (number.length() > 14) {
+                return new BigDecimal(number);
+            }
+
+            final Double value = Double.valueOf(number);
+            if (value.isInfinite() || value.isNaN()) {
+                return new BigDecimal(number);
+            }
+
+            return value;
+        }
+
+        final BigInteger value = new BigInteger(number);
+
+        if (value.bitLength() <= 31) {
+            return Integer.valueOf(value.intValue());
+        } else if (value.bitLength() <= 63) {
+            return Long.valueOf(value.longValue());
+        }
+
+        return value;
+    }
+
+    private void expect(JsonToken expected) {
+        final JsonToken token = this.peek();
+
+        if (token != expected) {
+            throw this.syntaxError("Expected " + expected + " but was " + token);
+        }
+
+        this.peeked = null;
+    }
+
+    private void push(int scope) {
+        if (this.stackSize == this.stack.length) {
+            this.stack = Arrays.copyOf(this.stack, this.stackSize * 2);
+        }
+
+        this.stack[this.stackSize++] = scope;
+    }
+
+    private int nextNonWhitespace() {
+        while (this.position < this.limit) {
+            final byte c = this.data[this.position++];
+
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean matches(String literal) {
+        if (this.position + literal.length() > this.limit) {
+            return false;
+        }
+
+        for (int i = 0; i < literal.length(); i++) {
+            if (this.data[this.position + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String readNumber() {
+        final int start = this.position;
+        this.skipNumber();
+        return new String(this.data, start, this.position - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private void skipNumber() {
+        this.peeked = null;
+
+        while (this.position < this.limit && JsonReader.isNumberChar(this.data[this.position])) {
+            this.position++;
+        }
+    }
+
+    private static boolean isNumberChar(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private void skipString() {
+        this.peeked = null;
+        this.position++;
+
+        while (this.position < this.limit) {
+            final byte c = this.data[this.position++];
+
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                this.position++;
+            }
+        }
+
+        throw this.syntaxError("Unterminated string");
+    }
+
+    private String readString() {
+        this.peeked = null;
+        final int start = ++this.position;
+
+        // common case, plain ascii with nothing escaped
+        int index = start;
+        while (index < this.limit) {
+            final byte c = this.data[index];
+
+            if (c == '"') {
+                this.position = index + 1;
+                return new String(this.data, start, index - start, StandardCharsets.ISO_8859_1);
+            } else if (c == '\\' || c < 0) {
+                break;
+            }
+
+            index++;
+        }
+
+        int length = 0;
+        this.position = start;
+
+        while (this.position < this.limit) {
+            int c = this.data[this.position++] & 0xFF;
+
+            if (length + 2 > this.chars.length) {
+                this.chars = Arrays.copyOf(this.chars, this.chars.length * 2);
+            }
+
+            if (c == '"') {
+                return new String(this.chars, 0, length);
+            } else if (c == '\\') {
+                this.chars[length++] = this.readEscape();
+            } else if (c < 0x80) {
+                this.chars[length++] = (char) c;
+            } else if ((c & 0xE0) == 0xC0) {
+                this.chars[length++] = (char) (((c & 0x1F) << 6) | this.continuation());
+            } else if ((c & 0xF0) == 0xE0) {
+                this.chars[length++] = (char) (((c & 0x0F) << 12) | (this.continuation() << 6) | this.continuation());
+            } else {
+                final int codePoint = ((c & 0x07) << 18) | (this.continuation() << 12) | (this.continuation() << 6) | this.continuation();
+                this.chars[length++] = Character.highSurrogate(codePoint);
+                this.chars[length++] = Character.lowSurrogate(codePoint);
+            }
+        }
+
+        throw this.syntaxError("Unterminated string");
+    }
+
+    private int continuation() {
+        if (this.position >= this.limit) {
+            throw this.syntaxError("Truncated UTF-8 sequence");
+        }
+
+        return this.data[this.position++] & 0x3F;
+    }
+
+    private char readEscape() {
+        if (this.position >= this.limit) {
+            throw this.syntaxError("Unterminated escape sequence");
+        }
+
+        final byte c = this.data[this.position++];
+
+        switch (c) {
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                if (this.position + 4 > this.limit) {
+                    throw this.syntaxError("Unterminated escape sequence");
+                }
+
+                final char unicode = (char) Integer.parseInt(new String(this.data, this.position, 4, StandardCharsets.ISO_8859_1), 16);
+                this.position += 4;
+                return unicode;
+            default: return (char) c;
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + this.position);
+    }
+}
@@ -0,0 +1,351 @@
+package com.wetrade.ledger_api.serialization;
+
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON writer that encodes straight into a growable UTF-8 byte buffer.
+ * The buffer is kept between uses so a writer can be reset and reused for every write
+ * on a thread. Not thread safe.
+ */
+public class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+
+    private byte[] buffer;
+    private int position;
+
+    // one flag per open object/array, true until its first member has been written
+    private boolean[] first;
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter() {
+        this(256);
+    }
+
+    public JsonWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+        this.first = new boolean[16];
+    }
+
+    public JsonWriter reset() {
+        this.position = 0;
+        this.depth = 0;
+        this.afterName = false;
+        return this;
+    }
+
+    public int size() {
+        return this.position;
+    }
+
+    /**
+     * The backing buffer, valid from 0 to size(). Only good until the next write or reset.
+     */
+    public byte[] buffer() {
+        return this.buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.position);
+    }
+
+    public JsonWriter beginObject() {
+        this.beforeValue();
+        this.write((byte) '{');
+        this.push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        this.depth--;
+        this.write((byte) '}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        this.beforeValue();
+        this.write((byte) '[');
+        this.push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        this.depth--;
+        this.write((byte) ']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        this.separate();
+        this.writeString(name);
+        this.write((byte) ':');
+        this.afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a name already encoded as a JSON string, quotes included, as value(name) would.
+     */
+    public JsonWriter encodedName(byte[] name) {
+        this.separate();
+        this.write(name);
+        this.write((byte) ':');
+        this.afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return this.nullValue();
+        }
+
+        this.beforeValue();
+        this.writeString(value);
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        this.beforeValue();
+        this.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        this.beforeValue();
+
+        if (value == Long.MIN_VALUE) {
+            this.writeAscii(Long.toString(value));
+            return this;
+        }
+
+        if (value < 0) {
+            this.write((byte) '-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+
+        this.ensureCapacity(digits);
+        int index = this.position + digits;
+        do {
+            this.buffer[--index] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        this.position += digits;
+
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON does not allow non-finite numbers");
+        }
+
+        this.beforeValue();
+        this.writeAscii(JsonWriter.trimNumber(Double.toString(value)));
+        return this;
+    }
+
+    /**
+     * Floats are formatted as floats, 1.1f is written 1.1 as org.json does rather than the
+     * 1.100000023841858 widening it to a double would give.
+     */
+    public JsonWriter value(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON does not allow non-finite numbers");
+        }
+
+        this.beforeValue();
+        this.writeAscii(JsonWriter.trimNumber(Float.toString(value)));
+        return this;
+    }
+
+    /**
+     * Writes an already formatted JSON number, such as the toString of a BigDecimal.
+     */
+    public JsonWriter numberValue(String value) {
+        this.beforeValue();
+        this.writeAscii(JsonWriter.trimNumber(value));
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        this.beforeValue();
+        this.write(NULL);
+        return this;
+    }
+
+    /**
+     * Writes an already encoded JSON value without validating it.
+     */
+    public JsonWriter rawValue(String json) {
+        this.beforeValue();
+        this.writeUtf8(json);
+        return this;
+    }
+
+    private void push() {
+        if (this.depth == this.first.length) {
+            this.first = Arrays.copyOf(this.first, this.depth * 2);
+        }
+
+        this.first[this.depth++] = true;
+    }
+
+    private void beforeValue() {
+        if (this.afterName) {
+            this.afterName = false;
+            return;
+        }
+
+        this.separate();
+    }
+
+    private void separate() {
+        if (this.depth == 0) {
+            return;
+        }
+
+        if (this.first[this.depth - 1]) {
+            this.first[this.depth - 1] = false;
+        } else {
+            this.write((byte) ',');
+        }
+    }
+
+    // same trimming org.json applies so "1.0" is written as "1"
+    private static String trimNumber(String number) {
+        if (number.indexOf('.') > 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            int end = number.length();
+
+            while (number.charAt(end - 1) == '0') {
+                end--;
+            }
+
+            if (number.charAt(end - 1) == '.') {
+                end--;
+            }
+
+            return number.substring(0, end);
+        }
+
+        return number;
+    }
+
+    private void writeString(String value) {
+        this.write((byte) '"');
+
+        final int length = value.length();
+        this.ensureCapacity(length + 2);
+
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+
+            if (c < 0x80) {
+                switch (c) {
+                    case '"': this.write((byte) '\\'); this.write((byte) '"'); break;
+                    case '\\': this.write((byte) '\\'); this.write((byte) '\\'); break;
+                    case '\b': this.write((byte) '\\'); this.write((byte) 'b'); break;
+                    case '\f': this.write((byte) '\\'); this.write((byte) 'f'); break;
+                    case '\n': this.write((byte) '\\'); this.write((byte) 'n'); break;
+                    case '\r': this.write((byte) '\\'); this.write((byte) 'r'); break;
+                    case '\t': this.write((byte) '\\'); this.write((byte) 't'); break;
+                    default:
+                        if (c < 0x20) {
+                            this.writeUnicodeEscape(c);
+                        } else {
+                            this.write((byte) c);
+                        }
+                }
+            } else {
+                i = this.writeUtf8Char(value, i);
+            }
+        }
+
+        this.write((byte) '"');
+    }
+
+    private void writeUnicodeEscape(char c) {
+        this.ensureCapacity(6);
+        this.buffer[this.position++] = '\\';
+        this.buffer[this.position++] = 'u';
+        this.buffer[this.position++] = HEX[(c >> 12) & 0xF];
+        this.buffer[this.position++] = HEX[(c >> 8) & 0xF];
+        this.buffer[this.position++] = HEX[(c >> 4) & 0xF];
+        this.buffer[this.position++] = HEX[c & 0xF];
+    }
+
+    private void writeUtf8(String value) {
+        final int length = value.length();
+        this.ensureCapacity(length);
+
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+
+            if (c < 0x80) {
+                this.write((byte) c);
+            } else {
+                i = this.writeUtf8Char(value, i);
+            }
+        }
+    }
+
+    // encodes the non ascii char at index, returning the index of the last char consumed
+    private int writeUtf8Char(String value, int index) {
+        final char c = value.charAt(index);
+        this.ensureCapacity(4);
+
+        if (c < 0x800) {
+            this.buffer[this.position++] = (byte) (0xC0 | (c >> 6));
+            this.buffer[this.position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            this.buffer[this.position++] = (byte) (0xF0 | (codePoint >> 18));
+            this.buffer[this.position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            this.buffer[this.position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            this.buffer[this.position++] = (byte) (0x80 | (codePoint & 0x3F));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, same replacement String.getBytes would use
+            this.buffer[this.position++] = (byte) '?';
+        } else {
+            this.buffer[this.position++] = (byte) (0xE0 | (c >> 12));
+            this.buffer[this.position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            this.buffer[this.position++] = (byte) (0x80 | (c & 0x3F));
+        }
+
+        return index;
+    }
+
+    private void writeAscii(String value) {
+        final int length = value.length();
+        this.ensureCapacity(length);
+
+        for (int i = 0; i < length; i++) {
+            this.buffer[this.position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        this.ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+    }
+
+    private void write(byte b) {
+        this.ensureCapacity(1);
+        this.buffer[this.position++] = b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.position + extra > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + extra));
+        }
+    }
+}
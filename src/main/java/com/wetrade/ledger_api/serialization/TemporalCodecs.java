@@ -0,0 +1,134 @@
+package com.wetrade.ledger_api.serialization;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Encodes and decodes the date and time types states are allowed to hold. Everything
+ * here is stateless so it can be used from any thread without synchronisation.
+ *
+ * java.util.Date keeps its existing wire format, yyyy-MM-dd'T'HH:mm:ss'Z' to the
+ * second, and is always written in UTC. It has a hand rolled fast path in both
+ * directions as it is by far the most common temporal field.
+ */
+public final class TemporalCodecs {
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final int DATE_LENGTH = 20;
+
+    private TemporalCodecs() {}
+
+    public static boolean isTemporal(Class<?> type) {
+        return Date.class.isAssignableFrom(type) || type == Instant.class || type == LocalDate.class || type == OffsetDateTime.class;
+    }
+
+    public static String format(Object value) {
+        if (value instanceof Date) {
+            return TemporalCodecs.formatDate((Date) value);
+        } else if (value instanceof Instant) {
+            return DateTimeFormatter.ISO_INSTANT.format((Instant) value);
+        } else if (value instanceof LocalDate) {
+            return DateTimeFormatter.ISO_LOCAL_DATE.format((LocalDate) value);
+        } else if (value instanceof OffsetDateTime) {
+            return DateTimeFormatter.ISO_OFFSET_DATE_TIME.format((OffsetDateTime) value);
+        }
+
+        throw new IllegalArgumentException("Unsupported temporal type " + value.getClass().getName());
+    }
+
+    public static Object parse(Class<?> type, String value) {
+        try {
+            if (Date.class.isAssignableFrom(type)) {
+                return TemporalCodecs.parseDate(value);
+            } else if (type == Instant.class) {
+                return Instant.parse(value);
+            } else if (type == LocalDate.class) {
+                return LocalDate.parse(value, DateTimeFormatter.ISO_LOCAL_DATE);
+            } else if (type == OffsetDateTime.class) {
+                return OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+            }
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid " + type.getSimpleName() + " value " + value + ". " + e.getMessage());
+        }
+
+        throw new IllegalArgumentException("Unsupported temporal type " + type.getName());
+    }
+
+    public static String formatDate(Date date) {
+        final long epochSecond = Math.floorDiv(date.getTime(), 1000L);
+        final long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+        final int secondOfDay = (int) Math.floorMod(epochSecond, SECONDS_PER_DAY);
+
+        final LocalDate day = LocalDate.ofEpochDay(epochDay);
+        final int year = day.getYear();
+
+        if (year < 0 || year > 9999) {
+            return DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochSecond(epochSecond));
+        }
+
+        final char[] chars = new char[DATE_LENGTH];
+        TemporalCodecs.digits(chars, 0, year, 4);
+        chars[4] = '-';
+        TemporalCodecs.digits(chars, 5, day.getMonthValue(), 2);
+        chars[7] = '-';
+        TemporalCodecs.digits(chars, 8, day.getDayOfMonth(), 2);
+        chars[10] = 'T';
+        TemporalCodecs.digits(chars, 11, secondOfDay / 3600, 2);
+        chars[13] = ':';
+        TemporalCodecs.digits(chars, 14, (secondOfDay / 60) % 60, 2);
+        chars[16] = ':';
+        TemporalCodecs.digits(chars, 17, secondOfDay % 60, 2);
+        chars[19] = 'Z';
+
+        return new String(chars);
+    }
+
+    public static Date parseDate(String value) {
+        if (value.length() == DATE_LENGTH && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == 'T'
+            && value.charAt(13) == ':' && value.charAt(16) == ':' && value.charAt(19) == 'Z') {
+            final int year = TemporalCodecs.parseDigits(value, 0, 4);
+            final int month = TemporalCodecs.parseDigits(value, 5, 2);
+            final int dayOfMonth = TemporalCodecs.parseDigits(value, 8, 2);
+            final int hour = TemporalCodecs.parseDigits(value, 11, 2);
+            final int minute = TemporalCodecs.parseDigits(value, 14, 2);
+            final int second = TemporalCodecs.parseDigits(value, 17, 2);
+
+            if (year >= 0 && month >= 1 && month <= 12 && dayOfMonth >= 1 && dayOfMonth <= 31
+                && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                final long epochDay = LocalDate.of(year, month, dayOfMonth).toEpochDay();
+                final long epochSecond = epochDay * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+
+                return new Date(epochSecond * 1000L);
+            }
+        }
+
+        // anything else ISO 8601 with an offset, eg fractional seconds or +01:00
+        return Date.from(OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant());
+    }
+
+    private static void digits(char[] chars, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+
+    private static int parseDigits(String value, int offset, int width) {
+        int result = 0;
+
+        for (int i = offset; i < offset + width; i++) {
+            final char c = value.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+
+            result = result * 10 + (c - '0');
+        }
+
+        return result;
+    }
+}
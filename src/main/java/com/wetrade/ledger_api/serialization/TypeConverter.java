@@ -0,0 +1,12 @@
+package com.wetrade.ledger_api.serialization;
+
+/**
+ * Reads and writes one Java type as JSON. Converters are resolved once per state field
+ * or constructor parameter and then shared, so implementations must be stateless.
+ * Null values are handled by the caller and never passed in.
+ */
+public interface TypeConverter<T> {
+    T read(JsonReader reader);
+
+    void write(JsonWriter writer, T value);
+}
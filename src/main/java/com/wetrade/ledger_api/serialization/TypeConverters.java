@@ -0,0 +1,527 @@
+package com.wetrade.ledger_api.serialization;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of converters keyed by Java type. Built in converters cover primitives and
+ * their boxes, String, BigDecimal, BigInteger, enums, the temporal types, arrays and
+ * List, Set and String keyed Map generics. Chaincode can register its own converters,
+ * which take priority over the built in ones; do so at start up before any state is
+ * read or written as resolved converters are cached.
+ */
+public final class TypeConverters {
+    private static final ConcurrentMap<Class<?>, TypeConverter<?>> registered = new ConcurrentHashMap<Class<?>, TypeConverter<?>>();
+    private static final ConcurrentMap<Type, TypeConverter<?>> resolved = new ConcurrentHashMap<Type, TypeConverter<?>>();
+    private static final Map<Class<?>, TypeConverter<?>> builtIn = new HashMap<Class<?>, TypeConverter<?>>();
+
+    // stands in for "no converter" in the resolved cache
+    private static final TypeConverter<Object> NONE = new TypeConverter<Object>() {
+        public Object read(JsonReader reader) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void write(JsonWriter writer, Object value) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    static {
+        final TypeConverter<Integer> integerConverter = new TypeConverter<Integer>() {
+            public Integer read(JsonReader reader) {
+                return reader.nextInt();
+            }
+
+            public void write(JsonWriter writer, Integer value) {
+                writer.value(value.longValue());
+            }
+        };
+        builtIn.put(int.class, integerConverter);
+        builtIn.put(Integer.class, integerConverter);
+
+        final TypeConverter<Long> longConverter = new TypeConverter<Long>() {
+            public Long read(JsonReader reader) {
+                return reader.nextLong();
+            }
+
+            public void write(JsonWriter writer, Long value) {
+                writer.value(value.longValue());
+            }
+        };
+        builtIn.put(long.class, longConverter);
+        builtIn.put(Long.class, longConverter);
+
+        final TypeConverter<Short> shortConverter = new TypeConverter<Short>() {
+            public Short read(JsonReader reader) {
+                final long value = reader.nextLong();
+
+                if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                    throw new IllegalArgumentException("Expected a short but got " + value);
+                }
+
+                return (short) value;
+            }
+
+            public void write(JsonWriter writer, Short value) {
+                writer.value(value.longValue());
+            }
+        };
+        builtIn.put(short.class, shortConverter);
+        builtIn.put(Short.class, shortConverter);
+
+        final TypeConverter<Byte> byteConverter = new TypeConverter<Byte>() {
+            public Byte read(JsonReader reader) {
+                final long value = reader.nextLong();
+
+                if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("Expected a byte but got " + value);
+                }
+
+                return (byte) value;
+            }
+
+            public void write(JsonWriter writer, Byte value) {
+                writer.value(value.longValue());
+            }
+        };
+        builtIn.put(byte.class, byteConverter);
+        builtIn.put(Byte.class, byteConverter);
+
+        final TypeConverter<Double> doubleConverter = new TypeConverter<Double>() {
+            public Double read(JsonReader reader) {
+                return reader.nextDouble();
+            }
+
+            public void write(JsonWriter writer, Double value) {
+                writer.value(value.doubleValue());
+            }
+        };
+        builtIn.put(double.class, doubleConverter);
+        builtIn.put(Double.class, doubleConverter);
+
+        final TypeConverter<Float> floatConverter = new TypeConverter<Float>() {
+            public Float read(JsonReader reader) {
+                return (float) reader.nextDouble();
+            }
+
+            public void write(JsonWriter writer, Float value) {
+                writer.value(value.floatValue());
+            }
+        };
+        builtIn.put(float.class, floatConverter);
+        builtIn.put(Float.class, floatConverter);
+
+        final TypeConverter<Boolean> booleanConverter = new TypeConverter<Boolean>() {
+            public Boolean read(JsonReader reader) {
+                return reader.nextBoolean();
+            }
+
+            public void write(JsonWriter writer, Boolean value) {
+                writer.value(value.booleanValue());
+            }
+        };
+        builtIn.put(boolean.class, booleanConverter);
+        builtIn.put(Boolean.class, booleanConverter);
+
+        final TypeConverter<Character> characterConverter = new TypeConverter<Character>() {
+            public Character read(JsonReader reader) {
+                final String value = reader.nextString();
+
+                if (value.length() != 1) {
+                    throw new IllegalArgumentException("Expected a single character but got " + value);
+                }
+
+                return value.charAt(0);
+            }
+
+            public void write(JsonWriter writer, Character value) {
+                writer.value(value.toString());
+            }
+        };
+        builtIn.put(char.class, characterConverter);
+        builtIn.put(Character.class, characterConverter);
+
+        builtIn.put(String.class, new TypeConverter<String>() {
+            public String read(JsonReader reader) {
+                return reader.nextString();
+            }
+
+            public void write(JsonWriter writer, String value) {
+                writer.value(value);
+            }
+        });
+
+        builtIn.put(BigDecimal.class, new TypeConverter<BigDecimal>() {
+            public BigDecimal read(JsonReader reader) {
+                return reader.nextBigDecimal();
+            }
+
+            public void write(JsonWriter writer, BigDecimal value) {
+                writer.numberValue(value.toString());
+            }
+        });
+
+        builtIn.put(BigInteger.class, new TypeConverter<BigInteger>() {
+            public BigInteger read(JsonReader reader) {
+                return reader.nextBigDecimal().toBigInteger();
+            }
+
+            public void write(JsonWriter writer, BigInteger value) {
+                writer.numberValue(value.toString());
+            }
+        });
+
+        for (Class<?> temporalType : new Class<?>[] {Date.class, Instant.class, LocalDate.class, OffsetDateTime.class}) {
+            builtIn.put(temporalType, new TemporalConverter(temporalType));
+        }
+
+        builtIn.put(String[].class, new TypeConverter<String[]>() {
+            public String[] read(JsonReader reader) {
+                ArrayList<String> values = new ArrayList<String>();
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        values.add(null);
+                    } else {
+                        values.add(reader.nextString());
+                    }
+                }
+
+                reader.endArray();
+                return values.toArray(new String[values.size()]);
+            }
+
+            public void write(JsonWriter writer, String[] value) {
+                writer.beginArray();
+
+                for (String element : value) {
+                    writer.value(element);
+                }
+
+                writer.endArray();
+            }
+        });
+
+        builtIn.put(int[].class, new TypeConverter<int[]>() {
+            public int[] read(JsonReader reader) {
+                int[] values = new int[8];
+                int size = 0;
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    if (size == values.length) {
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+
+                    values[size++] = reader.nextInt();
+                }
+
+                reader.endArray();
+                return Arrays.copyOf(values, size);
+            }
+
+            public void write(JsonWriter writer, int[] value) {
+                writer.beginArray();
+
+                for (int element : value) {
+                    writer.value(element);
+                }
+
+                writer.endArray();
+            }
+        });
+
+        builtIn.put(long[].class, new TypeConverter<long[]>() {
+            public long[] read(JsonReader reader) {
+                long[] values = new long[8];
+                int size = 0;
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    if (size == values.length) {
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+
+                    values[size++] = reader.nextLong();
+                }
+
+                reader.endArray();
+                return Arrays.copyOf(values, size);
+            }
+
+            public void write(JsonWriter writer, long[] value) {
+                writer.beginArray();
+
+                for (long element : value) {
+                    writer.value(element);
+                }
+
+                writer.endArray();
+            }
+        });
+    }
+
+    private TypeConverters() {}
+
+    public static <T> void register(Class<T> type, TypeConverter<T> converter) {
+        registered.put(type, converter);
+        resolved.clear();
+    }
+
+    /**
+     * The converter for a declared field or parameter type, or null when the type has
+     * to be handled some other way, for example nested states or plain beans.
+     */
+    public static TypeConverter<?> forType(Type type) {
+        TypeConverter<?> converter = resolved.get(type);
+
+        if (converter == null) {
+            converter = TypeConverters.resolve(type);
+            resolved.putIfAbsent(type, converter == null ? NONE : converter);
+        }
+
+        return converter == NONE ? null : converter;
+    }
+
+    private static TypeConverter<?> resolve(Type type) {
+        if (type instanceof Class) {
+            final Class<?> clazz = (Class<?>) type;
+
+            if (registered.containsKey(clazz)) {
+                return registered.get(clazz);
+            } else if (builtIn.containsKey(clazz)) {
+                return builtIn.get(clazz);
+            } else if (clazz.isEnum()) {
+                return TypeConverters.enumConverter(clazz);
+            } else if (clazz.isArray()) {
+                final TypeConverter<?> elementConverter = TypeConverters.forType(clazz.getComponentType());
+                return elementConverter != null ? new ArrayConverter(clazz.getComponentType(), elementConverter) : null;
+            }
+
+            return null;
+        } else if (type instanceof ParameterizedType) {
+            final ParameterizedType parameterized = (ParameterizedType) type;
+            final Class<?> raw = (Class<?>) parameterized.getRawType();
+            final Type[] arguments = parameterized.getActualTypeArguments();
+
+            if (registered.containsKey(raw)) {
+                return registered.get(raw);
+            } else if (raw == List.class || raw == Collection.class || raw == ArrayList.class) {
+                final TypeConverter<?> elementConverter = TypeConverters.forType(TypeConverters.bound(arguments[0]));
+                return elementConverter != null ? new CollectionConverter(elementConverter, false) : null;
+            } else if (raw == Set.class || raw == HashSet.class || raw == LinkedHashSet.class) {
+                final TypeConverter<?> elementConverter = TypeConverters.forType(TypeConverters.bound(arguments[0]));
+                return elementConverter != null ? new CollectionConverter(elementConverter, true) : null;
+            } else if ((raw == Map.class || raw == HashMap.class || raw == LinkedHashMap.class) && arguments[0] == String.class) {
+                final TypeConverter<?> valueConverter = TypeConverters.forType(TypeConverters.bound(arguments[1]));
+                return valueConverter != null ? new MapConverter(valueConverter) : null;
+            }
+        }
+
+        return null;
+    }
+
+    private static Type bound(Type type) {
+        if (type instanceof WildcardType) {
+            return ((WildcardType) type).getUpperBounds()[0];
+        }
+
+        return type;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static TypeConverter<?> enumConverter(Class<?> type) {
+        return new EnumConverter((Class<? extends Enum>) type);
+    }
+
+    @SuppressWarnings("unchecked")
+    static void writeElement(JsonWriter writer, TypeConverter<?> converter, Object value) {
+        if (value == null) {
+            writer.nullValue();
+        } else {
+            ((TypeConverter<Object>) converter).write(writer, value);
+        }
+    }
+
+    static Object readElement(JsonReader reader, TypeConverter<?> converter) {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        return converter.read(reader);
+    }
+
+    private static class TemporalConverter implements TypeConverter<Object> {
+        private final Class<?> type;
+
+        TemporalConverter(Class<?> type) {
+            this.type = type;
+        }
+
+        public Object read(JsonReader reader) {
+            return TemporalCodecs.parse(this.type, reader.nextString());
+        }
+
+        public void write(JsonWriter writer, Object value) {
+            writer.value(TemporalCodecs.format(value));
+        }
+    }
+
+    private static class EnumConverter<E extends Enum<E>> implements TypeConverter<E> {
+        private final Class<E> type;
+        private final Map<String, E> constants;
+
+        EnumConverter(Class<E> type) {
+            this.type = type;
+            this.constants = new HashMap<String, E>();
+
+            for (E constant : type.getEnumConstants()) {
+                this.constants.put(constant.name(), constant);
+            }
+        }
+
+        public E read(JsonReader reader) {
+            final String name = reader.nextString();
+            final E constant = this.constants.get(name);
+
+            if (constant == null) {
+                throw new IllegalArgumentException("No enum constant " + this.type.getCanonicalName() + "." + name);
+            }
+
+            return constant;
+        }
+
+        public void write(JsonWriter writer, E value) {
+            writer.value(value.name());
+        }
+    }
+
+    private static class ArrayConverter implements TypeConverter<Object> {
+        private final Class<?> componentType;
+        private final TypeConverter<?> elementConverter;
+
+        ArrayConverter(Class<?> componentType, TypeConverter<?> elementConverter) {
+            this.componentType = componentType;
+            this.elementConverter = elementConverter;
+        }
+
+        public Object read(JsonReader reader) {
+            ArrayList<Object> values = new ArrayList<Object>();
+            reader.beginArray();
+
+            while (reader.hasNext()) {
+                values.add(TypeConverters.readElement(reader, this.elementConverter));
+            }
+
+            reader.endArray();
+
+            final Object array = Array.newInstance(this.componentType, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Array.set(array, i, values.get(i));
+            }
+
+            return array;
+        }
+
+        public void write(JsonWriter writer, Object value) {
+            writer.beginArray();
+
+            final int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                TypeConverters.writeElement(writer, this.elementConverter, Array.get(value, i));
+            }
+
+            writer.endArray();
+        }
+    }
+
+    private static class CollectionConverter implements TypeConverter<Collection<Object>> {
+        private final TypeConverter<?> elementConverter;
+        private final boolean set;
+
+        CollectionConverter(TypeConverter<?> elementConverter, boolean set) {
+            this.elementConverter = elementConverter;
+            this.set = set;
+        }
+
+        public Collection<Object> read(JsonReader reader) {
+            final Collection<Object> values = this.set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+            reader.beginArray();
+
+            while (reader.hasNext()) {
+                values.add(TypeConverters.readElement(reader, this.elementConverter));
+            }
+
+            reader.endArray();
+            return values;
+        }
+
+        public void write(JsonWriter writer, Collection<Object> value) {
+            writer.beginArray();
+
+            for (Object element : value) {
+                TypeConverters.writeElement(writer, this.elementConverter, element);
+            }
+
+            writer.endArray();
+        }
+    }
+
+    private static class MapConverter implements TypeConverter<Map<String, Object>> {
+        private final TypeConverter<?> valueConverter;
+
+        MapConverter(TypeConverter<?> valueConverter) {
+            this.valueConverter = valueConverter;
+        }
+
+        public Map<String, Object> read(JsonReader reader) {
+            final Map<String, Object> values = new LinkedHashMap<String, Object>();
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                values.put(name, TypeConverters.readElement(reader, this.valueConverter));
+            }
+
+            reader.endObject();
+            return values;
+        }
+
+        public void write(JsonWriter writer, Map<String, Object> value) {
+            writer.beginObject();
+
+            for (Map.Entry<String, Object> entry : value.entrySet()) {
+                // org.json drops null members, keep doing the same
+                if (entry.getValue() != null) {
+                    writer.name(entry.getKey());
+                    TypeConverters.writeElement(writer, this.valueConverter, entry.getValue());
+                }
+            }
+
+            writer.endObject();
+        }
+    }
+}
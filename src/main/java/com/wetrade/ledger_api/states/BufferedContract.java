@@ -0,0 +1,22 @@
+package com.wetrade.ledger_api.states;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.contract.ContractInterface;
+
+/**
+ * A contract whose transactions buffer their state list writes, see StateList.setBuffered.
+ * Buffering is turned on before each transaction function runs and everything pending is
+ * flushed once it returns. Contracts overriding beforeTransaction or afterTransaction must
+ * call through to these, eg BufferedContract.super.afterTransaction(ctx, result).
+ */
+public interface BufferedContract extends ContractInterface {
+    @Override
+    default void beforeTransaction(Context ctx) {
+        TransactionCache.forContext(ctx).beginTransaction();
+    }
+
+    @Override
+    default void afterTransaction(Context ctx, Object result) {
+        TransactionCache.forContext(ctx).endTransaction();
+    }
+}
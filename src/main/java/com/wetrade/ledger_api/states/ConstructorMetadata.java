@@ -0,0 +1,108 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Parameter;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.wetrade.ledger_api.annotations.DefaultDeserialize;
+import com.wetrade.ledger_api.annotations.Deserialize;
+import com.wetrade.ledger_api.annotations.VerifyHash;
+import com.wetrade.ledger_api.collections.BooleanRulesHandler;
+import com.wetrade.ledger_api.collections.CompiledRule;
+import com.wetrade.ledger_api.serialization.TypeConverter;
+import com.wetrade.ledger_api.serialization.TypeConverters;
+
+public class ConstructorMetadata {
+    private final Constructor<?> constructor;
+    private final StateFactory factory;
+    private final String[] parameterNames;
+    private final Class<?>[] parameterTypes;
+    private final TypeConverter<?>[] converters;
+    private final Map<String, Integer> parameterIndexes;
+    private final CompiledRule collectionsRule;
+    private final boolean defaultDeserialize;
+    private final boolean verifyHash;
+    private final String[] verifyHashKeyParts;
+
+    ConstructorMetadata(Constructor<?> constructor) {
+        this.constructor = constructor;
+        this.factory = StateAccessors.factory(constructor);
+
+        final Parameter[] parameters = constructor.getParameters();
+        this.parameterNames = new String[parameters.length];
+        this.parameterTypes = new Class<?>[parameters.length];
+        this.converters = new TypeConverter<?>[parameters.length];
+        this.parameterIndexes = new HashMap<String, Integer>();
+
+        for (int i = 0; i < parameters.length; i++) {
+            this.parameterNames[i] = parameters[i].getName();
+            this.parameterTypes[i] = parameters[i].getType();
+            this.converters[i] = State.class.isAssignableFrom(this.parameterTypes[i]) ? null : TypeConverters.forType(parameters[i].getParameterizedType());
+            this.parameterIndexes.put(this.parameterNames[i], i);
+        }
+
+        final Deserialize deserialize = constructor.getAnnotation(Deserialize.class);
+        this.collectionsRule = deserialize != null ? BooleanRulesHandler.compile(deserialize.collections()) : null;
+        this.defaultDeserialize = constructor.getAnnotation(DefaultDeserialize.class) != null;
+
+        final VerifyHash verifyHash = constructor.getAnnotation(VerifyHash.class);
+        this.verifyHash = verifyHash != null;
+        this.verifyHashKeyParts = verifyHash != null ? verifyHash.keyParts() : new String[0];
+    }
+
+    public Constructor<?> getConstructor() {
+        return this.constructor;
+    }
+
+    public Object newInstance(Object[] args) throws Exception {
+        return this.factory.newInstance(args);
+    }
+
+    public int getParameterCount() {
+        return this.parameterNames.length;
+    }
+
+    public String[] getParameterNames() {
+        return this.parameterNames;
+    }
+
+    public int indexOf(String parameterName) {
+        final Integer index = this.parameterIndexes.get(parameterName);
+
+        return index != null ? index : -1;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return this.parameterTypes;
+    }
+
+    /**
+     * Converters for each parameter, resolved when the constructor was first inspected.
+     * Entries are null for nested states and types without a converter.
+     */
+    public TypeConverter<?>[] getConverters() {
+        return this.converters;
+    }
+
+    public CompiledRule getCollectionsRule() {
+        return this.collectionsRule;
+    }
+
+    public boolean isDeserialize() {
+        return this.collectionsRule != null;
+    }
+
+    public boolean isDefaultDeserialize() {
+        return this.defaultDeserialize;
+    }
+
+    public boolean isVerifyHash() {
+        return this.verifyHash;
+    }
+
+    // the parameters VerifyHash says make up the key, empty unless it opted in to hashing the arguments
+    public String[] getVerifyHashKeyParts() {
+        return this.verifyHashKeyParts;
+    }
+}
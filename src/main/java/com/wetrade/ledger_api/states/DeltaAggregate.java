@@ -0,0 +1,128 @@
+package com.wetrade.ledger_api.states;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import com.wetrade.ledger_api.handling.KeyRangeHandler;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+
+/**
+ * Numeric values updated by adding to them rather than by read-modify-write, for balances
+ * and quantities that many transactions change at once.
+ *
+ * Each transaction writes its change to a key of its own, a delta~ composite key of the
+ * value's key and the transaction id, so transactions adding to the same value never write
+ * the same key and never conflict. Reading sums the deltas and the base value with a
+ * partial key scan, and compact folds the deltas into the base to keep that scan short.
+ * A scan doesn't see the transaction's own writes, so the deltas and base written or
+ * deleted earlier in the transaction, by add or an earlier compact, are laid over it.
+ * Reading after compacting in the same transaction gives the compacted value plus
+ * anything added since.
+ *
+ * Reads and compaction scan the value's deltas, so a transaction that does either can
+ * still fail validation if another adds to the same value in the meantime. Keep them out
+ * of the transactions that add.
+ */
+public class DeltaAggregate {
+    private String name;
+    private Context ctx;
+    private TransactionCache cache;
+
+    public DeltaAggregate(Context ctx, String name) {
+        this.ctx = ctx;
+        this.cache = TransactionCache.forContext(ctx);
+        this.name = "delta~" + name + "|";
+    }
+
+    public void add(String key, BigDecimal amount) {
+        final String deltaKey = this.deltaKey(key);
+        final BigDecimal delta = DeltaAggregate.readValue(this.cache.getState(deltaKey)).add(amount);
+
+        this.cache.putState(deltaKey, DeltaAggregate.writeValue(delta));
+    }
+
+    public void subtract(String key, BigDecimal amount) {
+        this.add(key, amount.negate());
+    }
+
+    public BigDecimal get(String key) {
+        BigDecimal value = BigDecimal.ZERO;
+
+        for (byte[] entry : this.entries(key).values()) {
+            value = value.add(DeltaAggregate.readValue(entry));
+        }
+
+        return value;
+    }
+
+    /**
+     * Folds every delta into the base value and deletes them, returning the value.
+     */
+    public BigDecimal compact(String key) {
+        final String baseKey = this.baseKey(key);
+        BigDecimal value = BigDecimal.ZERO;
+
+        for (Map.Entry<String, byte[]> entry : this.entries(key).entrySet()) {
+            value = value.add(DeltaAggregate.readValue(entry.getValue()));
+
+            if (!entry.getKey().equals(baseKey)) {
+                this.cache.delState(entry.getKey());
+            }
+        }
+
+        this.cache.putState(baseKey, DeltaAggregate.writeValue(value));
+
+        return value;
+    }
+
+    public void delete(String key) {
+        for (String entryKey : this.entries(key).keySet()) {
+            this.cache.delState(entryKey);
+        }
+    }
+
+    // the base value and every delta, the key is a single part so a:b is not read as part of a
+    private Map<String, byte[]> entries(String key) {
+        final KeyRangeHandler krh = new KeyRangeHandler(this.name, new String[] {}, this.ctx);
+        final TreeMap<String, byte[]> entries = new TreeMap<String, byte[]>(KeyRangeHandler::compareKeys);
+
+        try (Stream<KeyValue> ledgerEntries = krh.partialKeyEntries(new String[] {key})) {
+            ledgerEntries.forEach((entry) -> entries.put(entry.getKey(), entry.getValue()));
+        }
+
+        for (Map.Entry<String, byte[]> written : this.cache.getWritten(this.baseKey(key)).entrySet()) {
+            if (written.getValue().length == 0) {
+                entries.remove(written.getKey());
+            } else {
+                entries.put(written.getKey(), written.getValue());
+            }
+        }
+
+        return entries;
+    }
+
+    private String baseKey(String key) {
+        return this.ctx.getStub().createCompositeKey(this.name, key).toString();
+    }
+
+    private String deltaKey(String key) {
+        return this.ctx.getStub().createCompositeKey(this.name, key, this.ctx.getStub().getTxId()).toString();
+    }
+
+    private static BigDecimal readValue(byte[] value) {
+        if (value == null || value.length == 0) {
+            return BigDecimal.ZERO;
+        }
+
+        return new BigDecimal(new String(value, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] writeValue(BigDecimal value) {
+        return value.toPlainString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,5 @@
+package com.wetrade.ledger_api.states;
+
+interface FieldAccessor {
+    Object get(Object target) throws IllegalAccessException;
+}
@@ -0,0 +1,105 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.wetrade.ledger_api.annotations.Indexed;
+import com.wetrade.ledger_api.annotations.Private;
+import com.wetrade.ledger_api.collections.BooleanRulesHandler;
+import com.wetrade.ledger_api.collections.CompiledRule;
+import com.wetrade.ledger_api.serialization.JsonWriter;
+import com.wetrade.ledger_api.serialization.TypeConverter;
+import com.wetrade.ledger_api.serialization.TypeConverters;
+
+public class FieldMetadata {
+    private final Field field;
+    private final String name;
+    private final byte[] encodedName;
+    private final Class<?> type;
+    private final FieldAccessor accessor;
+    private final TypeConverter<?> converter;
+    private final CompiledRule privateRule;
+    private final Indexed indexed;
+    private final ConcurrentMap<String, Boolean> collectionMatches;
+
+    FieldMetadata(Field field) {
+        field.setAccessible(true);
+
+        this.field = field;
+        this.name = field.getName();
+        this.encodedName = new JsonWriter(this.name.length() + 2).value(this.name).toByteArray();
+        this.type = field.getType();
+        this.accessor = StateAccessors.getter(field);
+        this.converter = State.class.isAssignableFrom(this.type) ? null : TypeConverters.forType(field.getGenericType());
+
+        final Private annotation = field.getAnnotation(Private.class);
+        this.privateRule = annotation != null ? BooleanRulesHandler.compile(annotation.collections()) : null;
+        this.collectionMatches = new ConcurrentHashMap<String, Boolean>();
+        this.indexed = field.getAnnotation(Indexed.class);
+    }
+
+    public Field getField() {
+        return this.field;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    // the name as a JSON string, for writers that put out the same names over and over
+    byte[] getEncodedName() {
+        return this.encodedName;
+    }
+
+    public Class<?> getType() {
+        return this.type;
+    }
+
+    /**
+     * Converter for the declared type of the field, null when the value has to be
+     * written based on its runtime type.
+     */
+    public TypeConverter<?> getConverter() {
+        return this.converter;
+    }
+
+    public boolean isPrivate() {
+        return this.privateRule != null;
+    }
+
+    public CompiledRule getPrivateRule() {
+        return this.privateRule;
+    }
+
+    public boolean isIndexed() {
+        return this.indexed != null;
+    }
+
+    public Indexed getIndexed() {
+        return this.indexed;
+    }
+
+    public Object get(Object target) throws IllegalAccessException {
+        return this.accessor.get(target);
+    }
+
+    public boolean isIncludedIn(String collection) {
+        if (collection == null) {
+            return !this.isPrivate();
+        }
+
+        if (!this.isPrivate()) {
+            return false;
+        }
+
+        Boolean matches = this.collectionMatches.get(collection);
+
+        if (matches == null) {
+            matches = this.privateRule.evaluate(new String[] {collection});
+            this.collectionMatches.putIfAbsent(collection, matches);
+        }
+
+        return matches;
+    }
+}
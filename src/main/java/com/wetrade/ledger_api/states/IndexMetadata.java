@@ -0,0 +1,154 @@
+package com.wetrade.ledger_api.states;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.wetrade.ledger_api.serialization.TemporalCodecs;
+
+/**
+ * An index declared with the Indexed annotation, one or more fields in key order.
+ *
+ * Values are turned into key parts so that the order of the keys follows the order of the
+ * values where it can. Integral fields are written as fixed width offset hex and floating
+ * point fields as sortable IEEE bits, dates use their ISO form and everything else is its
+ * string form, so ranges over those compare as strings.
+ */
+public class IndexMetadata {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String name;
+    private final List<FieldMetadata> fields;
+    private final boolean unique;
+
+    IndexMetadata(String name, List<FieldMetadata> fields, boolean unique) {
+        this.name = name;
+        this.fields = fields;
+        this.unique = unique;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public List<FieldMetadata> getFields() {
+        return this.fields;
+    }
+
+    public boolean isUnique() {
+        return this.unique;
+    }
+
+    /**
+     * Key parts for the state, or null if any of the fields is null as those states are
+     * left out of the index.
+     */
+    public String[] values(State state) {
+        final String[] values = new String[this.fields.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            final FieldMetadata field = this.fields.get(i);
+
+            try {
+                values[i] = IndexMetadata.encode(field, field.get(state));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Failed to read indexed field " + field.getName() + ". " + e.getMessage());
+            }
+
+            if (values[i] == null) {
+                return null;
+            }
+        }
+
+        return values;
+    }
+
+    String[] values(Map<String, Object> document) {
+        final String[] values = new String[this.fields.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            final FieldMetadata field = this.fields.get(i);
+            values[i] = IndexMetadata.encode(field, document.get(field.getName()));
+
+            if (values[i] == null) {
+                return null;
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Key parts for looking up the first values.length fields of the index.
+     */
+    public String[] encode(Object[] values) {
+        if (values.length > this.fields.size()) {
+            throw new RuntimeException("Index " + this.name + " only has " + this.fields.size() + " fields");
+        }
+
+        final String[] keyParts = new String[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            keyParts[i] = IndexMetadata.encode(this.fields.get(i), values[i]);
+
+            if (keyParts[i] == null) {
+                throw new RuntimeException("Cannot look up a null value in index " + this.name);
+            }
+        }
+
+        return keyParts;
+    }
+
+    public static String encode(FieldMetadata field, Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        final Class<?> type = field.getType();
+
+        if (IndexMetadata.isIntegral(type) && value instanceof Number) {
+            return IndexMetadata.hex(((Number) value).longValue() ^ Long.MIN_VALUE);
+        } else if (IndexMetadata.isFloatingPoint(type) && value instanceof Number) {
+            final long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            return IndexMetadata.hex(bits ^ ((bits >> 63) | Long.MIN_VALUE));
+        } else if (TemporalCodecs.isTemporal(value.getClass())) {
+            return TemporalCodecs.format(value);
+        } else if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+
+        return value.toString();
+    }
+
+    static void validate(FieldMetadata field) {
+        final Class<?> type = field.getType();
+
+        if (field.isPrivate()) {
+            throw new RuntimeException("Indexed field " + field.getName() + " cannot be private, index keys are stored in the world state");
+        }
+
+        if (type.isArray() || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type) || State.class.isAssignableFrom(type)) {
+            throw new RuntimeException("Indexed field " + field.getName() + " must hold a single value");
+        }
+    }
+
+    private static boolean isIntegral(Class<?> type) {
+        return type == int.class || type == Integer.class || type == long.class || type == Long.class
+            || type == short.class || type == Short.class || type == byte.class || type == Byte.class;
+    }
+
+    private static boolean isFloatingPoint(Class<?> type) {
+        return type == double.class || type == Double.class || type == float.class || type == Float.class;
+    }
+
+    private static String hex(long value) {
+        final char[] chars = new char[16];
+
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+
+        return new String(chars);
+    }
+}
@@ -1,34 +1,8 @@
 package com.wetrade.ledger_api.states;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
-import com.wetrade.ledger_api.annotations.DefaultDeserialize;
-import com.wetrade.ledger_api.annotations.Deserialize;
-import com.wetrade.ledger_api.annotations.Private;
-import com.wetrade.ledger_api.annotations.VerifyHash;
-import com.wetrade.ledger_api.collections.BooleanRulesHandler;
-
-import org.hyperledger.fabric.Logger;
-import org.hyperledger.fabric.contract.execution.JSONTransactionSerializer;
-import org.hyperledger.fabric.contract.metadata.TypeSchema;
-import org.hyperledger.fabric.contract.routing.TypeRegistry;
-import org.hyperledger.fabric.contract.routing.impl.TypeRegistryImpl;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 public abstract class State {
 
     public static Boolean verifyHash(String id, Map<String, byte[]> transientData) {
@@ -43,26 +17,31 @@ public abstract class State {
         return key.split(":");
     }
 
+    /**
+     * Checks a hash against the values passed to the class's VerifyHash constructor. When
+     * VerifyHash names keyParts the hash is worked out from the arguments directly,
+     * otherwise the state is built and hashed.
+     */
     public static <T extends State> Boolean verifyHash(Class<T> clazz, String hash, Object ...args) {
         // anyway to do this without taking clazz?
-        @SuppressWarnings("unchecked")
-        Constructor<T>[] constructors = (Constructor<T>[]) clazz.getConstructors();
+        final StateMetadata metadata = StateMetadata.forClass(clazz);
+        final ConstructorMetadata constructor = metadata.getVerifyHashConstructor();
 
-        for (Constructor<T> constructor : constructors) {
-            final VerifyHash annotation = constructor.getAnnotation(VerifyHash.class);
-
-            if (annotation != null) {
-                Parameter[] parameters = constructor.getParameters();
+        if (constructor == null) {
+            return false;
+        }
 
-                if (parameters.length != args.length) {
-                    throw new RuntimeException("Invalid args supplied. Expected " + parameters.length + " got " + args.length);
-                }
+        if (constructor.getParameterCount() != args.length) {
+            throw new RuntimeException("Invalid args supplied. Expected " + constructor.getParameterCount() + " got " + args.length);
+        }
 
-                T obj = State.buildState(args, constructor);
-                return obj.getHash().equals(hash);
-            }
+        if (metadata.getVerifyHashParameters() != null) {
+            return StateHasher.hash(StateSerializer.encodeForHash(clazz, args)).equals(hash);
         }
-        return false;
+
+        T obj = State.buildState(args, constructor);
+        obj.updateHash();
+        return obj.getHash().equals(hash);
     }
 
     public <T extends State> T toPublicForm() {
@@ -71,112 +50,20 @@ public abstract class State {
     }
 
     public static <T extends State> T deserialize(Class<T> clazz, String json, String[] collections) {
-        @SuppressWarnings("unchecked")
-        Constructor<T>[] constructors = (Constructor<T>[]) clazz.getConstructors();
-
-        Constructor<T> matchingConstructor = null;
-
-        for (Constructor<T> constructor : constructors) {
-            if (collections.length > 0) {
-                final Deserialize annotation = constructor.getAnnotation(Deserialize.class);
-
-                if (annotation != null) {
-                    BooleanRulesHandler collectionHandler = new BooleanRulesHandler(annotation.collections(), collections);
-
-                    if (collectionHandler.evaluate()) {
-                        if (matchingConstructor == null || constructor.getParameterCount() > matchingConstructor.getParameterCount()) {
-                            matchingConstructor = constructor;
-                        }
-                    }
-                }
-            } else {
-                final DefaultDeserialize annotation = constructor.getAnnotation(DefaultDeserialize.class);
-
-                if (annotation != null) {
-                    matchingConstructor = constructor;
-                    break;
-                }
-            }
-        }
-
-        if (matchingConstructor == null) {
-            throw new RuntimeException("No valid constructor found for collections returned");
-        }
-
-        JSONObject jsonObject = new JSONObject(json);
-
-        Parameter[] parameters = matchingConstructor.getParameters();
-
-        Object[] args = new Object[parameters.length];
-
-        for (int i = 0; i < parameters.length; i++) {
-            final String parameterName = parameters[i].getName();
-            final Class<?> parameterType = parameters[i].getType();
-
-            if (!jsonObject.has(parameterName)) {
-                throw new JSONException("State missing required constructor argument " + parameterName);
-            }
-
-            args[i] = State.resolveJSON(parameterType, jsonObject.get(parameterName), collections);
-        }
-
-        return State.buildState(args, matchingConstructor);
-    }
-
-    private static <T extends State> Object resolveJSON(Class<?> type, Object value, String[] collections) {
-        // TODO does matthews code solve this
-        if (State.class.isAssignableFrom(type)) {
-            @SuppressWarnings("unchecked")
-            Class<T> tClass = (Class<T>) type;
-            // value should be a json object in this sense
-            return State.deserialize(tClass, value.toString(), collections);
-        } else if (type.getName().equals("java.util.Date")) {
-            SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-            try {
-                return formatter.parse((String) value);
-            } catch (ParseException e) {
-                e.printStackTrace();
-                return "";
-            }
-        } else if (Enum.class.isAssignableFrom(type)) {
-            try {
-                Method valueOf = type.getMethod("valueOf", String.class);
-                return valueOf.invoke(null, value);
-            } catch (NoSuchMethodException | SecurityException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                // should not this this
-                e.printStackTrace();
-            }
-        } else if (type.isArray() || Number.class.isAssignableFrom(type)) {
-            final TypeRegistry tr = new TypeRegistryImpl(); // may need some setting up
-            final JSONTransactionSerializer jts = new JSONTransactionSerializer(tr);
-
-            final TypeSchema schema = TypeSchema.typeConvert(type);
-
-            String str;
-
-            if (type.isArray()) {
-                final JSONArray jsonArray = (JSONArray) value;
-                str = jsonArray.toString();
-            } else {
-                str = ((Number) value).toString();
-            }
-
-            return jts.fromBuffer(str.getBytes(), schema);
-        }
-
-        return value;
+        return StateReader.read(clazz, collections, json.getBytes(StandardCharsets.UTF_8));
     }
 
     public static State deserialize(String json) {
         throw new RuntimeException("Not yet implemented");
     };
 
-    private static <T extends State> T buildState(Object[] args, Constructor<T> constructor) {
+    @SuppressWarnings("unchecked")
+    static <T extends State> T buildState(Object[] args, ConstructorMetadata constructor) {
         try {
-            return constructor.newInstance(args);
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            throw new RuntimeException(e.getMessage());
-		}
+            return (T) constructor.newInstance(args);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     private String key;
@@ -204,44 +91,19 @@ public abstract class State {
     }
 
     private String serialize(String collection, Boolean force) {
-        return this.jsonify(collection, force).toString();
+        return new String(this.serializeToBytes(collection, force), StandardCharsets.UTF_8);
     }
 
-    private JSONObject jsonify(String collection, Boolean force) {
-        JSONObject json = new JSONObject();
-
-        ArrayList<Field> fields = this.getAllFields();
-
-        for (Field field : fields) {
-            field.setAccessible(true);
-            if (field.getName().equals("logger") || field.getName().startsWith("$")) {
-                continue;
-            }
-
-            if (force || this.shouldAddToJSON(collection, field)) {
-                try {
-                    Object value = field.get(this);
+    public byte[] serializeToBytes() {
+        return this.serializeToBytes(null);
+    }
 
-                    if (value instanceof State) {
-                        State stateValue = (State) value;
-                        json.put(field.getName(), new JSONObject(stateValue.serialize(collection, force)));
-                    } else if (field.getType().getName().equals("java.util.Date") && value != null) {
-                        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-                        json.put(field.getName(), formatter.format((Date) value));
-                    } else {
-                        json.put(field.getName(), value);
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                } catch (IllegalArgumentException e) {
-                    e.printStackTrace();
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    public byte[] serializeToBytes(String collection) {
+        return this.serializeToBytes(collection, false);
+    }
 
-        return json;
+    private byte[] serializeToBytes(String collection, Boolean force) {
+        return StateSerializer.serialize(this, collection, force);
     }
 
     public String getKey() {
@@ -256,56 +118,12 @@ public abstract class State {
         return this.hash;
     }
 
+    /**
+     * Hashes the canonical encoding of every field apart from the hash, the key and private
+     * ones included, see StateMetadata.getHashFields. Fields can change without going
+     * through the state, so every call encodes and digests the state again.
+     */
     public void updateHash() {
-        this.hash = this.generateHash();
-    }
-
-    private String generateHash() {
-        JSONObject jsonObject = this.jsonify(null, true);
-        jsonObject.remove("hash");
-
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            // SHOULD NEVER HAPPEN BUT CHEERS UP JAVA
-            return "";
-        }
-        byte[] encodedHash = digest.digest(jsonObject.toString().getBytes());
-
-        StringBuilder sb = new StringBuilder();
-
-        for (byte b : encodedHash) {
-            sb.append(String.format("%02x", b));
-        }
-
-        return sb.toString();
-    }
-
-    private ArrayList<Field> getAllFields() {
-        @SuppressWarnings("all")
-        Class clazz = this.getClass();
-        ArrayList<Field> fields = new ArrayList<Field>();
-
-        do {
-            fields.addAll(Arrays.asList(clazz.getDeclaredFields()));
-        } while ((clazz = clazz.getSuperclass()) != null);
-
-        return fields;
-    }
-
-    private boolean shouldAddToJSON(String collection, Field field) {
-        if (collection == null) {
-            return field.getAnnotation(Private.class) == null;
-        }
-
-        final Private annotation = field.getAnnotation(Private.class);
-
-        if (annotation == null) {
-            return false;
-        }
-        BooleanRulesHandler collectionHandler = new BooleanRulesHandler(annotation.collections(), new String[] {collection});
-
-        return collectionHandler.evaluate();
+        this.hash = StateHasher.hash(StateSerializer.encodeForHash(this));
     }
 }
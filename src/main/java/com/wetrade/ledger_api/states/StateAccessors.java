@@ -0,0 +1,198 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+
+import org.hyperledger.fabric.Logger;
+
+/**
+ * Builds direct method handle getters and constructors for State classes. When a handle
+ * cannot be created (security manager, unusual class loaders) the plain reflective
+ * equivalent is returned instead so callers never have to care which one they hold.
+ */
+final class StateAccessors {
+    private static final Logger logger = Logger.getLogger(StateAccessors.class);
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodType getterType = MethodType.methodType(Object.class, Object.class);
+
+    private StateAccessors() {}
+
+    static FieldAccessor getter(final Field field) {
+        try {
+            field.setAccessible(true);
+
+            MethodHandle handle = lookup.unreflectGetter(field);
+
+            if (Modifier.isStatic(field.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+
+            final MethodHandle getter = handle.asType(getterType);
+
+            return new FieldAccessor() {
+                public Object get(Object target) {
+                    try {
+                        return (Object) getter.invokeExact(target);
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        } catch (IllegalAccessException | RuntimeException e) {
+            logger.debug("Falling back to reflection for field " + field.getName() + ". " + e.getMessage());
+
+            return new FieldAccessor() {
+                public Object get(Object target) throws IllegalAccessException {
+                    return field.get(target);
+                }
+            };
+        }
+    }
+
+    static StateFactory factory(final Constructor<?> constructor) {
+        try {
+            constructor.setAccessible(true);
+
+            final Class<?>[] parameterTypes = constructor.getParameterTypes();
+            MethodHandle handle = lookup.unreflectConstructor(constructor);
+
+            // unbox primitive arguments with the same widening reflection allows, eg an Integer into a long
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (parameterTypes[i].isPrimitive()) {
+                    handle = MethodHandles.filterArguments(handle, i, StateAccessors.unboxer(parameterTypes[i]));
+                }
+            }
+
+            final MethodHandle spreader = handle
+                .asType(MethodType.genericMethodType(parameterTypes.length))
+                .asSpreader(Object[].class, parameterTypes.length);
+
+            return new StateFactory() {
+                public Object newInstance(Object[] args) throws Exception {
+                    try {
+                        return (Object) spreader.invokeExact(args);
+                    } catch (Exception | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        } catch (IllegalAccessException | NoSuchMethodException | RuntimeException e) {
+            logger.debug("Falling back to reflection for constructor of " + constructor.getDeclaringClass().getName() + ". " + e.getMessage());
+
+            return new StateFactory() {
+                public Object newInstance(Object[] args) throws Exception {
+                    try {
+                        return constructor.newInstance(args);
+                    } catch (InvocationTargetException e) {
+                        if (e.getCause() instanceof Exception) {
+                            throw (Exception) e.getCause();
+                        } else if (e.getCause() instanceof Error) {
+                            throw (Error) e.getCause();
+                        }
+
+                        throw e;
+                    }
+                }
+            };
+        }
+    }
+
+    private static MethodHandle unboxer(Class<?> type) throws NoSuchMethodException, IllegalAccessException {
+        final String name = "to" + Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+
+        return lookup.findStatic(StateAccessors.class, name, MethodType.methodType(type, Object.class));
+    }
+
+    /*
+     * The unboxers only take what Constructor.newInstance would: the matching wrapper or one
+     * that widens to the type without losing range. Anything else, null included, is an
+     * argument type mismatch rather than a silent narrowing.
+     */
+    static boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+
+        throw StateAccessors.mismatch(value, boolean.class);
+    }
+
+    static char toChar(Object value) {
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+
+        throw StateAccessors.mismatch(value, char.class);
+    }
+
+    static byte toByte(Object value) {
+        if (value instanceof Byte) {
+            return (Byte) value;
+        }
+
+        throw StateAccessors.mismatch(value, byte.class);
+    }
+
+    static short toShort(Object value) {
+        if (value instanceof Short || value instanceof Byte) {
+            return ((Number) value).shortValue();
+        }
+
+        throw StateAccessors.mismatch(value, short.class);
+    }
+
+    static int toInt(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).intValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+
+        throw StateAccessors.mismatch(value, int.class);
+    }
+
+    static long toLong(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+
+        throw StateAccessors.mismatch(value, long.class);
+    }
+
+    static float toFloat(Object value) {
+        if (value instanceof Float || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).floatValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+
+        throw StateAccessors.mismatch(value, float.class);
+    }
+
+    static double toDouble(Object value) {
+        if (value instanceof Double || value instanceof Float || value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+
+        throw StateAccessors.mismatch(value, double.class);
+    }
+
+    private static IllegalArgumentException mismatch(Object value, Class<?> type) {
+        final String given = value != null ? value.getClass().getName() : "null";
+
+        return new IllegalArgumentException("argument type mismatch, can't pass " + given + " as " + type.getName());
+    }
+}
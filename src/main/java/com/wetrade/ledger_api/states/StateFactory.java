@@ -0,0 +1,5 @@
+package com.wetrade.ledger_api.states;
+
+interface StateFactory {
+    Object newInstance(Object[] args) throws Exception;
+}
@@ -0,0 +1,54 @@
+package com.wetrade.ledger_api.states;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.wetrade.ledger_api.serialization.JsonWriter;
+
+/**
+ * SHA-256 of a state's hash encoding, hex encoded. The digest is kept per thread and fed
+ * the encoding straight from the serializer's buffer.
+ */
+final class StateHasher {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 not available. " + e.getMessage());
+            }
+        }
+    };
+
+    private StateHasher() {}
+
+    static String hash(JsonWriter encoding) {
+        final MessageDigest digest = digests.get();
+        digest.reset();
+        digest.update(encoding.buffer(), 0, encoding.size());
+
+        return StateHasher.hex(digest.digest());
+    }
+
+    // SHA-256 of any bytes, such as a stored payload
+    static byte[] digest(byte[] value) {
+        final MessageDigest digest = digests.get();
+        digest.reset();
+
+        return digest.digest(value);
+    }
+
+    static String hex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+}
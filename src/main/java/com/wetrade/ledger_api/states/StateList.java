@@ -1,39 +1,63 @@
 package com.wetrade.ledger_api.states;
 
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.wetrade.ledger_api.handling.HistoryFilter;
+import com.wetrade.ledger_api.handling.HistoryHandler;
+import com.wetrade.ledger_api.handling.KeyRangeHandler;
+import com.wetrade.ledger_api.handling.MergedDocument;
 import com.wetrade.ledger_api.handling.QueryHandler;
+import com.wetrade.ledger_api.handling.QueryPage;
 import com.wetrade.ledger_api.handling.QueryResponse;
 
 import org.hyperledger.fabric.Logger;
 import org.hyperledger.fabric.contract.Context;
 import org.hyperledger.fabric.shim.ledger.KeyModification;
 import org.hyperledger.fabric.shim.ledger.KeyValue;
-import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 public abstract class StateList<T extends State> {
+    private static final int PARALLEL_DESERIALIZE_THRESHOLD = 32;
+    private static final int DEFAULT_COUNTER_SHARDS = 16;
+    private static final int HISTORY_BINDINGS = 64;
+
     private Logger logger = Logger.getLogger(StateList.class);
     private String name;
     private Class<? extends T> supportedClass;
     private Context ctx;
+    private TransactionCache cache;
+    private boolean hashIndexed;
+    private boolean parallelDecoding;
+    private boolean indexHints;
+    private boolean newestFirstHistory;
+    private int counterShards;
 
     public StateList(Context ctx, String listName) {
         this.ctx = ctx;
+        this.cache = TransactionCache.forContext(ctx);
         this.name = listName + "|";
         this.supportedClass = null;
     }
 
     public boolean exists(String key) {
-        try {
-            this.getWorldStateData(key);
-            return true;
-        } catch (Exception err) {
-            return false;
-        }
+        final String ledgerKey = this.ctx.getStub().createCompositeKey(this.name, State.splitKey(key)).toString();
+
+        return this.cache.hasState(ledgerKey);
     }
 
     public void add(T state) throws RuntimeException {
@@ -41,7 +65,6 @@ public abstract class StateList<T extends State> {
     }
 
     public void add(T state, String[] collections) throws RuntimeException {
-        state.updateHash();
         final String stateKey = state.getKey();
 
         if (this.exists(stateKey)) {
@@ -50,19 +73,20 @@ public abstract class StateList<T extends State> {
 
         final String key = this.ctx.getStub().createCompositeKey(this.name, state.getSplitKey()).toString();
 
-        final String serialized = state.serialize();
-        final byte[] worldStateData = serialized.getBytes();
+        state.updateHash();
+        final byte[] worldStateData = state.serializeToBytes();
 
-        this.ctx.getStub().putState(key, worldStateData);
+        this.updateIndexes(stateKey, new byte[0], worldStateData);
+        this.cache.putState(key, worldStateData);
+        this.updateCounter(1);
 
         for (String collection : collections) {
-            final String collectionSerialized = state.serialize(collection);
-            final byte[] privateData = collectionSerialized.getBytes();
+            final byte[] privateData = state.serializeToBytes(collection);
 
             if (privateData.length > 2) {
                 try {
                     logger.info("Collection being added to: " + collection);
-                    this.ctx.getStub().putPrivateData(collection, key, privateData);
+                    this.cache.putPrivateData(collection, key, privateData);
                 } catch (Exception err) {
                     // TODO CHECK IF THIS HAPPENS AS NOT ALLOWED OR BECAUSE OTHER BAD THINGS HAVE HAPPENED
                 }
@@ -70,44 +94,111 @@ public abstract class StateList<T extends State> {
         }
     }
 
-    private String getWorldStateData(String key) {
-        final String ledgerKey = this.ctx.getStub().createCompositeKey(this.name, State.splitKey(key)).toString();
-        final String worldStateData = new String(this.ctx.getStub().getState(ledgerKey));
+    public T get(String key) throws RuntimeException {
+        return this.get(key, new String[]{});
+    }
+
+    public T get(String key, String[] collections) throws RuntimeException {
+        final ArrayList<String> usedCollections = new ArrayList<String>();
+        final byte[][] documents = this.readDocuments(key, collections, usedCollections);
 
-        if (worldStateData.length() == 0) {
+        if (documents == null) {
             throw new RuntimeException("Cannot get state. No state exists for key " + key);
         }
 
-        return worldStateData;
+        T returnVal;
+
+        try {
+            returnVal = this.deserialize(documents, usedCollections.toArray(new String[usedCollections.size()]));
+        } catch (Exception err) {
+            throw new RuntimeException("Failed to deserialize " + key + ". " + err.getMessage());
+        }
+        return returnVal;
     }
 
-    public T get(String key) throws RuntimeException {
-        return this.get(key, new String[]{});
+    public Map<String, T> getAll(Collection<String> keys) {
+        return this.getAll(keys, new String[]{});
     }
 
-    public T get(String key, String[] collections) throws RuntimeException {
+    /**
+     * Gets several states at once. The returned map is in the order the keys were given and
+     * holds null for any key with no state rather than throwing.
+     *
+     * The 1.4 shim only allows one outstanding call per transaction, so the ledger reads are
+     * still made one after the other, but through the transaction cache so repeated keys cost
+     * nothing. Decoding is sequential unless useParallelDecoding has been called.
+     */
+    public Map<String, T> getAll(Collection<String> keys, String[] collections) {
+        final Map<String, T> results = new LinkedHashMap<String, T>();
+        final ArrayList<String> foundKeys = new ArrayList<String>();
+        final ArrayList<byte[][]> foundDocuments = new ArrayList<byte[][]>();
+        final ArrayList<String[]> foundCollections = new ArrayList<String[]>();
+
+        for (String key : keys) {
+            if (results.containsKey(key)) {
+                continue;
+            }
+            results.put(key, null);
+
+            final ArrayList<String> usedCollections = new ArrayList<String>();
+            final byte[][] documents = this.readDocuments(key, collections, usedCollections);
+
+            if (documents != null) {
+                foundKeys.add(key);
+                foundDocuments.add(documents);
+                foundCollections.add(usedCollections.toArray(new String[usedCollections.size()]));
+            }
+        }
+
+        final List<T> states = this.decodeAll(foundKeys.size(), (i) -> {
+            try {
+                return this.deserialize(foundDocuments.get(i), foundCollections.get(i));
+            } catch (Exception err) {
+                throw new RuntimeException("Failed to deserialize " + foundKeys.get(i) + ". " + err.getMessage());
+            }
+        });
+
+        for (int i = 0; i < foundKeys.size(); i++) {
+            results.put(foundKeys.get(i), states.get(i));
+        }
+
+        return results;
+    }
+
+    // in order, in parallel when turned on with useParallelDecoding and there are enough
+    private List<T> decodeAll(int count, IntFunction<T> decoder) {
+        IntStream indexes = IntStream.range(0, count);
+
+        if (this.parallelDecoding && count >= PARALLEL_DESERIALIZE_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+
+        return indexes.mapToObj(decoder).collect(Collectors.toList());
+    }
+
+    // world state first then each readable collection, null when there is no state for the key
+    private byte[][] readDocuments(String key, String[] collections, ArrayList<String> usedCollections) {
         final String ledgerKey = this.ctx.getStub().createCompositeKey(this.name, State.splitKey(key)).toString();
-        final String worldStateData = this.getWorldStateData(key);
+        final byte[] worldStateData = this.cache.getState(ledgerKey);
 
-        JSONObject stateJSON = new JSONObject(worldStateData);
-        String stateClass = stateJSON.getString("stateClass");
+        if (worldStateData.length == 0) {
+            return null;
+        }
+
+        String stateClass = StateReader.readStateClass(worldStateData);
         if (!this.supportedClass.getName().equals(stateClass)) {
             throw new RuntimeException("Cannot get state for key " + key + ". State class is not in list of supported classes for state list.");
         }
 
-        ArrayList<String> usedCollections = new ArrayList<String>();
+        ArrayList<byte[]> documents = new ArrayList<byte[]>();
+        documents.add(worldStateData);
 
         for (String collection : collections) {
             try {
-                final String privateData = new String(ctx.getStub().getPrivateData(collection, ledgerKey));
-
-                if (privateData.length() > 0) {
-                    JSONObject privateJSON = new JSONObject(privateData);
-
-                    for (String jsonKey : JSONObject.getNames(privateJSON)) {
-                        stateJSON.put(jsonKey, privateJSON.get(jsonKey));
-                    }
+                final byte[] privateData = this.cache.getPrivateData(collection, ledgerKey);
 
+                if (privateData.length > 0) {
+                    documents.add(privateData);
                     usedCollections.add(collection);
                 }
             } catch (Exception err) {
@@ -115,22 +206,28 @@ public abstract class StateList<T extends State> {
             }
         }
 
-        T returnVal;
-
-        try {
-            returnVal = this.deserialize(stateJSON, usedCollections.toArray(new String[usedCollections.size()]));
-        } catch (Exception err) {
-            throw new RuntimeException("Failed to deserialize " + key + ". " + err.getMessage());
-        }
-        return returnVal;
+        return documents.toArray(new byte[documents.size()][]);
     }
 
-
     public T getByHash(String hash) {
         return this.getByHash(hash, new String[]{});
     }
 
     public T getByHash(String hash, String[] collections) {
+        if (this.hashIndexed) {
+            // the entries written and deleted earlier in the transaction count too, as in findBy
+            final KeyRangeHandler krh = new KeyRangeHandler(this.hashIndexName(), new String[]{}, this.ctx);
+            final String prefix = this.ctx.getStub().createCompositeKey(this.hashIndexName(), hash).toString();
+            final List<String> keys = this.indexedKeys(krh.partialKeyEntries(new String[]{hash}), prefix, null, null);
+
+            if (keys.size() > 1) {
+                throw new RuntimeException("More than one asset shares the same hash...");
+            } else if (keys.size() == 0) {
+                throw new RuntimeException("There are no " + this.name + " with this hash");
+            }
+            return this.get(keys.get(0), collections);
+        }
+
         JSONObject hashQuery = new JSONObject("{\"selector\": {\"hash\": \""+hash+"\"}}");
         ArrayList<T> assets = this.query(hashQuery, collections);
         if (assets.size() > 1) {
@@ -143,35 +240,109 @@ public abstract class StateList<T extends State> {
 
     @SuppressWarnings("unchecked")
     public HistoricState<T>[] getHistory(String key) {
-        // No history for private data
+        final List<HistoricState<T>> hsArrList;
+
+        try (Stream<HistoricState<T>> history = this.getHistoryStream(key)) {
+            hsArrList = history.collect(Collectors.toList());
+        }
+
+        HistoricState<T>[] hsArr = hsArrList.toArray(new HistoricState[hsArrList.size()]);
+
+        return hsArr;
+    }
+
+    public Stream<HistoricState<T>> getHistoryStream(String key) {
+        return this.getHistoryStream(key, null);
+    }
+
+    /**
+     * Lazy form of getHistory, in the order the ledger returns it. Versions are only
+     * deserialized as the stream is consumed and deletions are left out. Each version gets
+     * a state object of its own, repeated payloads are only read once, see HistoryDecoder.
+     * There is no history for private data.
+     */
+    public Stream<HistoricState<T>> getHistoryStream(String key, HistoryFilter filter) {
+        return this.historyHandler(key).stream(filter).map(new HistoryDecoder(key));
+    }
+
+    public List<HistoricState<T>> getLatestHistory(String key, int count) {
+        return this.getLatestHistory(key, count, null);
+    }
+
+    /**
+     * The count most recent versions passing the filter, newest first. Only those versions
+     * are deserialized. Which are the most recent depends on the order the peer returns
+     * history in, see useNewestFirstHistory.
+     */
+    public List<HistoricState<T>> getLatestHistory(String key, int count, HistoryFilter filter) {
+        return this.historyHandler(key).latest(count, filter).stream()
+            .map(new HistoryDecoder(key))
+            .collect(Collectors.toList());
+    }
+
+    private HistoryHandler historyHandler(String key) {
         final String ledgerKey = this.ctx.getStub().createCompositeKey(this.name, State.splitKey(key)).toString();
-        final QueryResultsIterator<KeyModification> keyHistory = this.ctx.getStub().getHistoryForKey(ledgerKey);
 
-        ArrayList<HistoricState<T>> hsArrList = new ArrayList<HistoricState<T>>();
+        return new HistoryHandler(ledgerKey, this.ctx, this.newestFirstHistory);
+    }
 
-        for (KeyModification modification : keyHistory) {
-            final String worldStateData = modification.getStringValue();
+    /**
+     * Decodes each version of a key's history into a state of its own. Versions with the
+     * same payload are common, a state put back unchanged or touched only to move an index,
+     * so the constructor arguments read from recent payloads are kept by their SHA-256 and
+     * copied into a new state for each repeat rather than read again. Only the last
+     * HISTORY_BINDINGS distinct payloads are kept, so a long history still streams in
+     * bounded memory. Payloads holding values that can't be copied are read every time.
+     */
+    private class HistoryDecoder implements Function<KeyModification, HistoricState<T>> {
+        private final String key;
+        private final Map<ByteBuffer, StateReader.Binding> bindings = new LinkedHashMap<ByteBuffer, StateReader.Binding>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, StateReader.Binding> eldest) {
+                return this.size() > HISTORY_BINDINGS;
+            }
+        };
+
+        private HistoryDecoder(String key) {
+            this.key = key;
+        }
 
-            JSONObject worldStateJSON = new JSONObject(worldStateData);
+        @Override
+        public HistoricState<T> apply(KeyModification modification) {
+            final T state;
 
-            T state;
             try {
-                state = this.deserialize(worldStateJSON, new String[] {});
+                state = this.decode(modification.getValue());
             } catch (RuntimeException err) {
-                throw new RuntimeException("Failed to get history for key " + key + ". " + err.getMessage());
+                throw new RuntimeException("Failed to get history for key " + this.key + ". " + err.getMessage());
             }
 
             final Long ts = modification.getTimestamp().toEpochMilli();
             final String txId = modification.getTxId();
 
-            final HistoricState<T> hs = new HistoricState<T>(ts, txId, state);
-
-            hsArrList.add(hs);
+            return new HistoricState<T>(ts, txId, state);
         }
 
-        HistoricState<T>[] hsArr = hsArrList.toArray(new HistoricState[hsArrList.size()]);
+        private T decode(byte[] value) {
+            final ByteBuffer digest = ByteBuffer.wrap(StateHasher.digest(value));
 
-        return hsArr;
+            if (!this.bindings.containsKey(digest)) {
+                StateReader.Binding binding;
+
+                try {
+                    binding = StateReader.bind(StateList.this.supportedClass, new String[] {}, value);
+                } catch (RuntimeException err) {
+                    // left to deserialize, which has its own fallback and errors
+                    binding = null;
+                }
+
+                this.bindings.put(digest, binding);
+            }
+
+            final StateReader.Binding binding = this.bindings.get(digest);
+
+            return binding != null ? binding.<T>newState() : StateList.this.deserialize(new byte[][] {value}, new String[] {});
+        }
     }
 
     public ArrayList<T> query(JSONObject query) {
@@ -179,28 +350,24 @@ public abstract class StateList<T extends State> {
     }
 
     public ArrayList<T> query(JSONObject query, String[] collections) {
-        final QueryHandler<T> qh = new QueryHandler<T>(query, this.name, collections, this.ctx, this.supportedClass);
+        if (StateList.isEmptyQuery(query)) {
+            return this.getByPartialKey(new String[]{}, collections);
+        }
+
+        final QueryHandler<T> qh = new QueryHandler<T>(query, this.name, collections, this.ctx, this.supportedClass, this.indexHints);
         final QueryResponse queryResult = qh.execute();
 
         final String[] usedCollections = queryResult.getUsedCollections();
-        final Map<String, JSONObject> queryResultMap = queryResult.getQueryResult();
-
-        ArrayList<T> queryResultArray = new ArrayList<T>();
+        final List<MergedDocument> documents = new ArrayList<MergedDocument>(queryResult.getDocuments().values());
 
-        for (Map.Entry<String, JSONObject> result : queryResultMap.entrySet()) {
-            T state;
+        return new ArrayList<T>(this.decodeAll(documents.size(), (i) -> {
             try {
-                JSONObject mapProp = result.getValue();
-
-                state = this.deserialize(mapProp, usedCollections);
-                queryResultArray.add(state);
+                return this.deserialize(documents.get(i).getLayers(), usedCollections);
             } catch (RuntimeException err) {
                 err.printStackTrace();
                 throw new RuntimeException("Failed to run query. " + err.getMessage());
             }
-        }
-
-        return queryResultArray;
+        }));
     }
 
     public ArrayList<T> getAll() {
@@ -211,13 +378,296 @@ public abstract class StateList<T extends State> {
         return this.query(new JSONObject(), collections);
     }
 
-    @SuppressWarnings("unused")
+    public Stream<T> queryStream(JSONObject query) {
+        return this.queryStream(query, new String[]{});
+    }
+
+    /**
+     * Lazy form of query. States are only deserialized as the stream is consumed, and the
+     * ledger iterator is released when the stream is closed or exhausted, so use it in a
+     * try-with-resources block if it may not be read to the end.
+     */
+    public Stream<T> queryStream(JSONObject query, String[] collections) {
+        if (StateList.isEmptyQuery(query)) {
+            return this.getByPartialKeyStream(new String[]{}, collections);
+        }
+
+        final QueryHandler<T> qh = new QueryHandler<T>(query, this.name, collections, this.ctx, this.supportedClass, this.indexHints);
+
+        return qh.stream(this::deserializeResult);
+    }
+
+    public Stream<T> getAllStream() {
+        return this.queryStream(new JSONObject(), new String[]{});
+    }
+
+    public Stream<T> getAllStream(String[] collections) {
+        return this.queryStream(new JSONObject(), collections);
+    }
+
+    public QueryPage<T> queryPage(JSONObject query, int pageSize, String bookmark) {
+        return this.queryPage(query, pageSize, bookmark, new String[]{});
+    }
+
+    /**
+     * Gets one page of query results. Pass the returned bookmark to get the next page, an
+     * empty or null bookmark starts from the beginning.
+     */
+    public QueryPage<T> queryPage(JSONObject query, int pageSize, String bookmark, String[] collections) {
+        if (StateList.isEmptyQuery(query)) {
+            return this.getByPartialKeyPage(new String[]{}, pageSize, bookmark, collections);
+        }
+
+        final QueryHandler<T> qh = new QueryHandler<T>(query, this.name, collections, this.ctx, this.supportedClass, this.indexHints);
+
+        return qh.page(pageSize, bookmark, this::deserializeResult);
+    }
+
+    public QueryPage<T> getAllPage(int pageSize, String bookmark) {
+        return this.queryPage(new JSONObject(), pageSize, bookmark, new String[]{});
+    }
+
+    public QueryPage<T> getAllPage(int pageSize, String bookmark, String[] collections) {
+        return this.queryPage(new JSONObject(), pageSize, bookmark, collections);
+    }
+
+    public ArrayList<T> getByPartialKey(String... keyParts) {
+        return this.getByPartialKey(keyParts, new String[]{});
+    }
+
+    /**
+     * Gets every state whose key starts with the given parts, in key order. This reads the
+     * keys directly rather than running a rich query so it also works on LevelDB.
+     */
+    public ArrayList<T> getByPartialKey(String[] keyParts, String[] collections) {
+        try (Stream<T> states = this.getByPartialKeyStream(keyParts, collections)) {
+            return states.collect(Collectors.toCollection(ArrayList<T>::new));
+        }
+    }
+
+    public Stream<T> getByPartialKeyStream(String[] keyParts, String[] collections) {
+        final KeyRangeHandler krh = new KeyRangeHandler(this.name, collections, this.ctx);
+
+        return krh.partialKey(keyParts, this::deserializeResult);
+    }
+
+    public QueryPage<T> getByPartialKeyPage(String[] keyParts, int pageSize, String bookmark) {
+        return this.getByPartialKeyPage(keyParts, pageSize, bookmark, new String[]{});
+    }
+
+    public QueryPage<T> getByPartialKeyPage(String[] keyParts, int pageSize, String bookmark, String[] collections) {
+        final KeyRangeHandler krh = new KeyRangeHandler(this.name, collections, this.ctx);
+
+        return krh.partialKeyPage(keyParts, pageSize, bookmark, this::deserializeResult);
+    }
+
+    public ArrayList<T> getRange(String[] startKeyParts, String[] endKeyParts) {
+        return this.getRange(startKeyParts, endKeyParts, new String[]{});
+    }
+
+    /**
+     * Gets the states with keys from startKeyParts up to but not including endKeyParts, in
+     * key order. Either bound may be null to leave that end open.
+     */
+    public ArrayList<T> getRange(String[] startKeyParts, String[] endKeyParts, String[] collections) {
+        try (Stream<T> states = this.getRangeStream(startKeyParts, endKeyParts, collections)) {
+            return states.collect(Collectors.toCollection(ArrayList<T>::new));
+        }
+    }
+
+    public Stream<T> getRangeStream(String[] startKeyParts, String[] endKeyParts, String[] collections) {
+        final KeyRangeHandler krh = new KeyRangeHandler(this.name, collections, this.ctx);
+
+        return krh.range(startKeyParts, endKeyParts, this::deserializeResult);
+    }
+
+    public QueryPage<T> getRangePage(String[] startKeyParts, String[] endKeyParts, int pageSize, String bookmark) {
+        return this.getRangePage(startKeyParts, endKeyParts, pageSize, bookmark, new String[]{});
+    }
+
+    public QueryPage<T> getRangePage(String[] startKeyParts, String[] endKeyParts, int pageSize, String bookmark, String[] collections) {
+        final KeyRangeHandler krh = new KeyRangeHandler(this.name, collections, this.ctx);
+
+        return krh.rangePage(startKeyParts, endKeyParts, pageSize, bookmark, this::deserializeResult);
+    }
+
+    public ArrayList<T> findBy(String index, Object value) {
+        return this.findByValues(index, new Object[] {value}, new String[]{});
+    }
+
+    public ArrayList<T> findBy(String index, Object value, String[] collections) {
+        return this.findByValues(index, new Object[] {value}, collections);
+    }
+
+    public ArrayList<T> findByValues(String index, Object[] values) {
+        return this.findByValues(index, values, new String[]{});
+    }
+
+    /**
+     * Gets the states whose indexed fields equal the values, in index order. The values
+     * may cover just the leading fields of a composite index. Index entries written earlier
+     * in the transaction are seen along with the ones on the ledger.
+     */
+    public ArrayList<T> findByValues(String index, Object[] values, String[] collections) {
+        final IndexMetadata indexMetadata = this.getIndex(index);
+        final String[] keyParts = indexMetadata.encode(values);
+        final ArrayList<String> keys = new ArrayList<String>();
+
+        if (indexMetadata.isUnique() && keyParts.length == indexMetadata.getFields().size()) {
+            final String entryKey = this.ctx.getStub().createCompositeKey(this.indexName(indexMetadata), keyParts).toString();
+            final byte[] entry = this.cache.getState(entryKey);
+
+            if (entry.length > 0) {
+                keys.add(new String(entry, StandardCharsets.UTF_8));
+            }
+        } else {
+            final KeyRangeHandler krh = new KeyRangeHandler(this.indexName(indexMetadata), new String[]{}, this.ctx);
+            final String prefix = this.ctx.getStub().createCompositeKey(this.indexName(indexMetadata), keyParts).toString();
+
+            keys.addAll(this.indexedKeys(krh.partialKeyEntries(keyParts), prefix, null, null));
+        }
+
+        return this.getIndexed(keys, collections);
+    }
+
+    public ArrayList<T> findByRange(String index, Object from, Object to) {
+        return this.findByRange(index, from, to, new String[]{});
+    }
+
+    public ArrayList<T> findByRange(String index, Object from, Object to, String[] collections) {
+        return this.findByValuesRange(index, from != null ? new Object[] {from} : null, to != null ? new Object[] {to} : null, collections);
+    }
+
+    /**
+     * Gets the states with index values from from up to but not including to, in index
+     * order. Either bound may be null to leave it open. Values are compared as index keys,
+     * see IndexMetadata for how each type orders. Like findByValues this sees index entries
+     * written earlier in the transaction.
+     */
+    public ArrayList<T> findByValuesRange(String index, Object[] from, Object[] to, String[] collections) {
+        final IndexMetadata indexMetadata = this.getIndex(index);
+        final String[] startKeyParts = from != null ? indexMetadata.encode(from) : null;
+        final String[] endKeyParts = to != null ? indexMetadata.encode(to) : null;
+
+        final KeyRangeHandler krh = new KeyRangeHandler(this.indexName(indexMetadata), new String[]{}, this.ctx);
+        final String prefix = this.ctx.getStub().createCompositeKey(this.indexName(indexMetadata)).toString();
+        final String startKey = this.indexBoundKey(indexMetadata, startKeyParts);
+        final String endKey = this.indexBoundKey(indexMetadata, endKeyParts);
+
+        return this.getIndexed(this.indexedKeys(krh.rangeEntries(startKeyParts, endKeyParts), prefix, startKey, endKey), collections);
+    }
+
+    private IndexMetadata getIndex(String index) {
+        final IndexMetadata indexMetadata = StateMetadata.forClass(this.supportedClass).getIndex(index);
+
+        if (indexMetadata == null) {
+            throw new RuntimeException("No index " + index + " on " + this.supportedClass.getName());
+        }
+
+        return indexMetadata;
+    }
+
+    /**
+     * The state keys the index entries point to, in key order. Range and partial key scans
+     * don't see the transaction's own writes, so the entries written under prefix between
+     * startKey and endKey earlier in the transaction are laid over the ones from the ledger.
+     */
+    private List<String> indexedKeys(Stream<KeyValue> entries, String prefix, String startKey, String endKey) {
+        final TreeMap<String, byte[]> merged = new TreeMap<String, byte[]>(KeyRangeHandler::compareKeys);
+
+        try (Stream<KeyValue> ledgerEntries = entries) {
+            ledgerEntries.forEach((entry) -> merged.put(entry.getKey(), entry.getValue()));
+        }
+
+        for (Map.Entry<String, byte[]> written : this.cache.getWritten(prefix).entrySet()) {
+            final String key = written.getKey();
+
+            if ((startKey != null && KeyRangeHandler.compareKeys(key, startKey) < 0) || (endKey != null && KeyRangeHandler.compareKeys(key, endKey) >= 0)) {
+                continue;
+            }
+
+            if (written.getValue().length == 0) {
+                merged.remove(key);
+            } else {
+                merged.put(key, written.getValue());
+            }
+        }
+
+        final ArrayList<String> keys = new ArrayList<String>();
+
+        for (byte[] value : merged.values()) {
+            keys.add(new String(value, StandardCharsets.UTF_8));
+        }
+
+        return keys;
+    }
+
+    private String indexBoundKey(IndexMetadata index, String[] keyParts) {
+        if (keyParts == null || keyParts.length == 0) {
+            return null;
+        }
+
+        return this.ctx.getStub().createCompositeKey(this.indexName(index), keyParts).toString();
+    }
+
+    private ArrayList<T> getIndexed(List<String> keys, String[] collections) {
+        final ArrayList<T> states = new ArrayList<T>();
+
+        for (T state : this.getAll(keys, collections).values()) {
+            if (state != null) {
+                states.add(state);
+            }
+        }
+
+        return states;
+    }
+
+    /**
+     * The number of states in the list. With a counter in use this sums the counter shards,
+     * otherwise it is a recount.
+     */
     public int count() {
-        final QueryResultsIterator<KeyValue> values = this.ctx.getStub().getStateByPartialCompositeKey(this.name);
+        if (this.counterShards == 0) {
+            return this.recount();
+        }
 
-        int counter = 0;
-        for (KeyValue ignore : values) {
-            counter++;
+        long counter = 0;
+
+        for (int shard = 0; shard < this.counterShards; shard++) {
+            counter += StateList.readCount(this.cache.getState(this.counterKey(shard)));
+        }
+
+        return (int) counter;
+    }
+
+    /**
+     * Counts the states by scanning the list's keys. The shim has no keys only scan so the
+     * documents still come back, but they are streamed rather than held. Like any scan it
+     * doesn't see writes made earlier in the same transaction.
+     */
+    public int recount() {
+        final KeyRangeHandler krh = new KeyRangeHandler(this.name, new String[]{}, this.ctx);
+
+        try (Stream<KeyValue> values = krh.partialKeyEntries(new String[]{})) {
+            return (int) values.count();
+        }
+    }
+
+    /**
+     * Recounts the list and resets the counter to match, for lists that held states before
+     * the counter was turned on or after the shard count was lowered. It writes every shard
+     * so it conflicts with any add or delete committed alongside it.
+     */
+    public int repairCount() {
+        if (this.counterShards == 0) {
+            throw new RuntimeException("No counter in use for list " + this.name);
+        }
+
+        final int counter = this.recount();
+
+        for (int shard = 0; shard < this.counterShards; shard++) {
+            final long value = shard == 0 ? counter : 0;
+            this.cache.putState(this.counterKey(shard), Long.toString(value).getBytes(StandardCharsets.UTF_8));
         }
 
         return counter;
@@ -236,26 +686,32 @@ public abstract class StateList<T extends State> {
     }
 
     public void update(T state, String[] collections, boolean force) throws RuntimeException {
-        state.updateHash();
-
         final String stateKey = state.getKey();
 
-        if (!this.exists(stateKey) && !force) {
+        final boolean exists = this.exists(stateKey);
+
+        if (!exists && !force) {
             throw new RuntimeException("Cannot update state. No state exists for key " + stateKey);
         }
 
         final String ledgerKey = this.ctx.getStub().createCompositeKey(this.name, state.getSplitKey()).toString();
 
-        final byte[] data = state.serialize().getBytes();
+        state.updateHash();
+        final byte[] data = state.serializeToBytes();
 
-        this.ctx.getStub().putState(ledgerKey, data);
+        this.updateIndexes(stateKey, this.cache.getState(ledgerKey), data);
+        this.cache.putState(ledgerKey, data);
+
+        if (!exists) {
+            this.updateCounter(1);
+        }
 
         for (String collection : collections) {
-            final byte[] privateData = state.serialize(collection).getBytes();
+            final byte[] privateData = state.serializeToBytes(collection);
 
             if (privateData.length > 2) {
                 try {
-                    this.ctx.getStub().putPrivateData(collection, ledgerKey, privateData);
+                    this.cache.putPrivateData(collection, ledgerKey, privateData);
                 } catch (Exception err) {
                     // can't access that store
                 }
@@ -271,11 +727,13 @@ public abstract class StateList<T extends State> {
         if (this.exists(key)) {
             final String ledgerKey = this.ctx.getStub().createCompositeKey(this.name, State.splitKey(key)).toString();
 
-            this.ctx.getStub().delState(ledgerKey);
+            this.updateIndexes(key, this.cache.getState(ledgerKey), new byte[0]);
+            this.cache.delState(ledgerKey);
+            this.updateCounter(-1);
 
             for (String collection : collections) {
                 try {
-                    this.ctx.getStub().delPrivateData(collection, ledgerKey);
+                    this.cache.delPrivateData(collection, ledgerKey);
                 } catch (Exception err) {
                     // can't access that store
                 }
@@ -283,21 +741,250 @@ public abstract class StateList<T extends State> {
         }
     }
 
+    /**
+     * Turns write buffering on or off for every state list in the transaction. While on,
+     * add, update and delete, and the index and counter entries they keep, only record
+     * the bytes to write and nothing reaches the ledger until flush is called, when each
+     * key is written once. Turning buffering off flushes anything pending.
+     *
+     * Buffering can only be turned on in a transaction run by a BufferedContract, which
+     * buffers from the start and flushes when the transaction ends, so writes are never
+     * left behind.
+     */
+    public static void setBuffered(Context ctx, boolean buffered) {
+        TransactionCache.forContext(ctx).setBuffered(buffered);
+    }
+
+    public static void flush(Context ctx) {
+        TransactionCache.forContext(ctx).flush();
+    }
+
+    public void flush() {
+        this.cache.flush();
+    }
+
     protected void use(Class<? extends T> stateClass) {
         this.supportedClass = stateClass;
     }
 
-    private T deserialize(JSONObject json, String[] collections) {
+    /**
+     * Keeps a hash~ index of state hashes so getByHash is a key lookup rather than a rich
+     * query, which also makes it usable on LevelDB. Each entry is a composite key of the
+     * hash and the state key holding the state key as its value, kept up to date by add,
+     * update and delete on this list. States written before the index was turned on have
+     * no entry until they are next updated.
+     */
+    protected void useHashIndex() {
+        this.hashIndexed = true;
+    }
+
+    /**
+     * Adds use_index hints to the rich queries this list runs, pointing them at the indexes
+     * CouchDBIndexes generates for the state class. Only turn this on once those indexes are
+     * packaged with the chaincode. Depending on its version CouchDB either fails a query
+     * hinted at a missing index or runs it with a warning.
+     */
+    protected void useIndexHints() {
+        this.indexHints = true;
+    }
+
+    /**
+     * Fabric 1.4 peers, which this library is built against, return key history oldest
+     * first and Fabric 2 peers newest first. Call this when the chaincode runs on Fabric 2
+     * or later so getLatestHistory picks the right versions.
+     */
+    protected void useNewestFirstHistory() {
+        this.newestFirstHistory = true;
+    }
+
+    /**
+     * Lets getAll and query decode the states they read on the common fork join pool once
+     * there are enough of them to make it worth it. Only turn this on when the state class's
+     * constructors, and any deserialize method it falls back to, are safe to call from
+     * several threads at once.
+     */
+    protected void useParallelDecoding() {
+        this.parallelDecoding = true;
+    }
+
+    /**
+     * Keeps a count~ counter of the states in the list so count is a handful of key reads
+     * rather than a scan. The counter is split over shards, each a composite key holding a
+     * signed delta, and a transaction only adjusts the shard its id hashes to, so adds and
+     * deletes in different transactions rarely touch the same key. States written before
+     * the counter was turned on aren't counted until repairCount is run.
+     */
+    protected void useCounter() {
+        this.useCounter(DEFAULT_COUNTER_SHARDS);
+    }
+
+    protected void useCounter(int shards) {
+        if (shards < 1) {
+            throw new RuntimeException("Counter must have at least 1 shard");
+        }
+
+        this.counterShards = shards;
+    }
+
+    private String counterKey(int shard) {
+        return this.ctx.getStub().createCompositeKey("count~" + this.name, Integer.toString(shard)).toString();
+    }
+
+    private void updateCounter(long delta) {
+        if (this.counterShards == 0) {
+            return;
+        }
+
+        final String key = this.counterKey(Math.floorMod(this.ctx.getStub().getTxId().hashCode(), this.counterShards));
+        final long value = StateList.readCount(this.cache.getState(key)) + delta;
+
+        this.cache.putState(key, Long.toString(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long readCount(byte[] value) {
+        if (value.length == 0) {
+            return 0;
+        }
+
+        return Long.parseLong(new String(value, StandardCharsets.UTF_8));
+    }
+
+    private String hashIndexName() {
+        return "hash~" + this.name;
+    }
+
+    private String indexName(IndexMetadata index) {
+        return "index~" + this.name + index.getName();
+    }
+
+    // unique entries leave out the state key so there can only be one per value
+    private String indexEntryKey(IndexMetadata index, String[] values, String stateKey) {
+        if (index.isUnique()) {
+            return this.ctx.getStub().createCompositeKey(this.indexName(index), values).toString();
+        }
+
+        final String[] keyParts = Arrays.copyOf(values, values.length + 1);
+        keyParts[values.length] = stateKey;
+        return this.ctx.getStub().createCompositeKey(this.indexName(index), keyParts).toString();
+    }
+
+    /**
+     * Brings the hash index and Indexed index entries in line with a write of the state
+     * key, given the stored documents from before and after it, either empty when there is
+     * no state. Values are read from the documents rather than the state so they match what
+     * is stored. Unique indexes are checked before anything is written.
+     */
+    private void updateIndexes(String stateKey, byte[] previous, byte[] current) {
+        final List<IndexMetadata> indexes = StateMetadata.forClass(this.supportedClass).getIndexes();
+
+        if (!indexes.isEmpty()) {
+            final Map<String, Object> previousFields = this.readIndexedFields(indexes, previous);
+            final Map<String, Object> fields = this.readIndexedFields(indexes, current);
+
+            if (fields != null) {
+                for (IndexMetadata index : indexes) {
+                    this.checkUniqueIndex(index, index.values(fields), stateKey);
+                }
+            }
+
+            for (IndexMetadata index : indexes) {
+                final String[] previousValues = previousFields != null ? index.values(previousFields) : null;
+                final String[] values = fields != null ? index.values(fields) : null;
+
+                // only touch entries whose values have changed
+                if (Arrays.equals(previousValues, values)) {
+                    continue;
+                }
+
+                if (previousValues != null) {
+                    this.cache.delState(this.indexEntryKey(index, previousValues, stateKey));
+                }
+
+                if (values != null) {
+                    this.cache.putState(this.indexEntryKey(index, values, stateKey), stateKey.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        if (this.hashIndexed) {
+            this.updateHashIndex(stateKey, previous, current);
+        }
+    }
+
+    private Map<String, Object> readIndexedFields(List<IndexMetadata> indexes, byte[] document) {
+        if (document.length == 0) {
+            return null;
+        }
+
+        final ArrayList<FieldMetadata> indexedFields = new ArrayList<FieldMetadata>();
+
+        for (IndexMetadata index : indexes) {
+            indexedFields.addAll(index.getFields());
+        }
+
+        return StateReader.readFields(document, indexedFields);
+    }
+
+    private void updateHashIndex(String stateKey, byte[] previous, byte[] current) {
+        final String previousHash = previous.length > 0 ? StateReader.readString(previous, "hash") : null;
+        final String hash = current.length > 0 ? StateReader.readString(current, "hash") : null;
+
+        if (previousHash != null && previousHash.equals(hash)) {
+            return;
+        }
+
+        if (previousHash != null) {
+            this.cache.delState(this.ctx.getStub().createCompositeKey(this.hashIndexName(), previousHash, stateKey).toString());
+        }
+
+        if (hash != null) {
+            final String indexKey = this.ctx.getStub().createCompositeKey(this.hashIndexName(), hash, stateKey).toString();
+            this.cache.putState(indexKey, stateKey.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void checkUniqueIndex(IndexMetadata index, String[] values, String stateKey) {
+        if (!index.isUnique() || values == null) {
+            return;
+        }
+
+        final String existing = new String(this.cache.getState(this.indexEntryKey(index, values, stateKey)), StandardCharsets.UTF_8);
+
+        if (!existing.isEmpty() && !existing.equals(stateKey)) {
+            throw new RuntimeException("Cannot write state " + stateKey + ". State " + existing + " already has the same value for unique index " + index.getName());
+        }
+    }
+
+    // a query that selects nothing is every state in the list, which is cheaper to read by key
+    private static boolean isEmptyQuery(JSONObject query) {
+        for (String property : query.keySet()) {
+            if (!property.equals("selector") || query.getJSONObject("selector").length() > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private T deserializeResult(byte[][] documents, String[] collections) {
+        try {
+            return this.deserialize(documents, collections);
+        } catch (RuntimeException err) {
+            throw new RuntimeException("Failed to run query. " + err.getMessage());
+        }
+    }
+
+    private T deserialize(byte[][] documents, String[] collections) {
         // final Class<? extends T> clazz = this.supportedClasses.get(stateClass);
         final Class<? extends T> clazz = this.supportedClass;
 
         try {
-            return State.deserialize(clazz, json.toString(), collections);
+            return StateReader.read(clazz, collections, documents);
         } catch (JSONException e) {
             throw new RuntimeException("Failed to deserialize. " + e.getMessage());
         } catch (RuntimeException e) {
             if (e.getMessage().equals("No valid constructor found for collections returned")) {
-                return this.deserialize(json, clazz);
+                return this.deserialize(new MergedDocument(documents).toJSON(), clazz);
             }
             throw e;
         }
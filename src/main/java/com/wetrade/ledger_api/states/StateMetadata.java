@@ -0,0 +1,294 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reflection data for a State class, built once per class and shared across threads.
+ */
+public class StateMetadata {
+    static final int STATE_CLASS = -1;
+    static final int KEY = -2;
+
+    private static final ConcurrentMap<Class<?>, StateMetadata> registry = new ConcurrentHashMap<Class<?>, StateMetadata>();
+
+    public static StateMetadata forClass(Class<?> clazz) {
+        StateMetadata metadata = registry.get(clazz);
+
+        if (metadata == null) {
+            metadata = new StateMetadata(clazz);
+            final StateMetadata existing = registry.putIfAbsent(clazz, metadata);
+
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+
+        return metadata;
+    }
+
+    private final Class<?> clazz;
+    private final List<FieldMetadata> fields;
+    private final List<FieldMetadata> hashFields;
+    private final List<IndexMetadata> indexes;
+    private final List<ConstructorMetadata> deserializers;
+    private final ConstructorMetadata defaultDeserializer;
+    private final ConstructorMetadata verifyHashConstructor;
+    private final int[] verifyHashParameters;
+    private final int[] verifyHashKeyParts;
+    private final ConcurrentMap<List<String>, ConstructorMetadata> deserializerMatches;
+
+    private StateMetadata(Class<?> clazz) {
+        this.clazz = clazz;
+
+        ArrayList<FieldMetadata> fields = new ArrayList<FieldMetadata>();
+        HashSet<String> names = new HashSet<String>();
+        Class<?> current = clazz;
+
+        do {
+            for (Field field : current.getDeclaredFields()) {
+                if (field.getName().equals("logger") || field.getName().startsWith("$")) {
+                    continue;
+                }
+
+                // a field shadowed by a subclass field of the same name is left out, the subclass one is read first
+                if (!names.add(field.getName())) {
+                    continue;
+                }
+
+                fields.add(new FieldMetadata(field));
+            }
+        } while ((current = current.getSuperclass()) != null);
+
+        this.fields = Collections.unmodifiableList(fields);
+        this.hashFields = StateMetadata.buildHashFields(fields);
+        this.indexes = StateMetadata.buildIndexes(fields);
+
+        ArrayList<ConstructorMetadata> deserializers = new ArrayList<ConstructorMetadata>();
+        ConstructorMetadata defaultDeserializer = null;
+        ConstructorMetadata verifyHashConstructor = null;
+
+        for (Constructor<?> constructor : clazz.getConstructors()) {
+            final ConstructorMetadata constructorMetadata = new ConstructorMetadata(constructor);
+
+            if (constructorMetadata.isDeserialize()) {
+                deserializers.add(constructorMetadata);
+            }
+
+            if (constructorMetadata.isDefaultDeserialize() && defaultDeserializer == null) {
+                defaultDeserializer = constructorMetadata;
+            }
+
+            if (constructorMetadata.isVerifyHash() && verifyHashConstructor == null) {
+                verifyHashConstructor = constructorMetadata;
+            }
+        }
+
+        this.deserializers = Collections.unmodifiableList(deserializers);
+        this.defaultDeserializer = defaultDeserializer;
+        this.verifyHashConstructor = verifyHashConstructor;
+        this.verifyHashKeyParts = StateMetadata.buildVerifyHashKeyParts(clazz, verifyHashConstructor);
+        this.verifyHashParameters = this.verifyHashKeyParts != null ? StateMetadata.buildVerifyHashParameters(clazz, this.hashFields, verifyHashConstructor) : null;
+        this.deserializerMatches = new ConcurrentHashMap<List<String>, ConstructorMetadata>();
+    }
+
+    public Class<?> getStateClass() {
+        return this.clazz;
+    }
+
+    public List<FieldMetadata> getFields() {
+        return this.fields;
+    }
+
+    public List<IndexMetadata> getIndexes() {
+        return this.indexes;
+    }
+
+    public IndexMetadata getIndex(String name) {
+        for (IndexMetadata index : this.indexes) {
+            if (index.getName().equals(name)) {
+                return index;
+            }
+        }
+
+        return null;
+    }
+
+    public FieldMetadata getField(String name) {
+        for (FieldMetadata field : this.fields) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+
+        return null;
+    }
+
+    public ConstructorMetadata getDefaultDeserializer() {
+        return this.defaultDeserializer;
+    }
+
+    public ConstructorMetadata getVerifyHashConstructor() {
+        return this.verifyHashConstructor;
+    }
+
+    /**
+     * The fields a state's hash covers, sorted by name so the hash doesn't depend on the
+     * order they are declared or reflected in. Every field but the hash itself, the key
+     * included.
+     */
+    public List<FieldMetadata> getHashFields() {
+        return this.hashFields;
+    }
+
+    // for each hash field the VerifyHash parameter holding its value, null unless VerifyHash names keyParts
+    int[] getVerifyHashParameters() {
+        return this.verifyHashParameters;
+    }
+
+    // the VerifyHash parameters making up the key, in order
+    int[] getVerifyHashKeyParts() {
+        return this.verifyHashKeyParts;
+    }
+
+    /**
+     * Picks the constructor used to rebuild a state from the given collections. With no
+     * collections this is the DefaultDeserialize constructor, otherwise the widest
+     * Deserialize constructor whose rule is satisfied. Returns null when none match.
+     */
+    public ConstructorMetadata getDeserializer(String[] collections) {
+        if (collections.length == 0) {
+            return this.defaultDeserializer;
+        }
+
+        final List<String> key = Arrays.asList(collections);
+        ConstructorMetadata match = this.deserializerMatches.get(key);
+
+        if (match == null) {
+            for (ConstructorMetadata constructor : this.deserializers) {
+                if (constructor.getCollectionsRule().evaluate(collections)) {
+                    if (match == null || constructor.getParameterCount() > match.getParameterCount()) {
+                        match = constructor;
+                    }
+                }
+            }
+
+            if (match != null) {
+                this.deserializerMatches.putIfAbsent(new ArrayList<String>(key), match);
+            }
+        }
+
+        return match;
+    }
+
+    private static List<FieldMetadata> buildHashFields(List<FieldMetadata> fields) {
+        final ArrayList<FieldMetadata> hashFields = new ArrayList<FieldMetadata>();
+
+        for (FieldMetadata field : fields) {
+            if (!(field.getField().getDeclaringClass() == State.class && field.getName().equals("hash"))) {
+                hashFields.add(field);
+            }
+        }
+
+        hashFields.sort(Comparator.comparing(FieldMetadata::getName));
+        return Collections.unmodifiableList(hashFields);
+    }
+
+    private static int[] buildVerifyHashKeyParts(Class<?> clazz, ConstructorMetadata constructor) {
+        if (constructor == null || constructor.getVerifyHashKeyParts().length == 0) {
+            return null;
+        }
+
+        final String[] names = constructor.getVerifyHashKeyParts();
+        final int[] keyParts = new int[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            keyParts[i] = constructor.indexOf(names[i]);
+
+            if (keyParts[i] < 0) {
+                throw new RuntimeException("VerifyHash on " + clazz.getName() + " names key part " + names[i] + " which is not a parameter");
+            }
+        }
+
+        return keyParts;
+    }
+
+    /**
+     * Matches the hash fields to the parameters of a VerifyHash constructor that opted in
+     * with keyParts, so the hash can be worked out from the arguments alone. The key maps
+     * to KEY and is rebuilt from the key parts, stateClass is set by State itself and maps
+     * to STATE_CLASS, and every other field must have a parameter of the same name and an
+     * assignable type.
+     */
+    private static int[] buildVerifyHashParameters(Class<?> clazz, List<FieldMetadata> hashFields, ConstructorMetadata constructor) {
+        final int[] parameters = new int[hashFields.size()];
+
+        for (int i = 0; i < parameters.length; i++) {
+            final FieldMetadata field = hashFields.get(i);
+            final boolean own = field.getField().getDeclaringClass() == State.class;
+
+            if (own && field.getName().equals("stateClass")) {
+                parameters[i] = STATE_CLASS;
+                continue;
+            }
+
+            if (own && field.getName().equals("key")) {
+                parameters[i] = KEY;
+                continue;
+            }
+
+            parameters[i] = constructor.indexOf(field.getName());
+
+            if (parameters[i] < 0 || !field.getType().isAssignableFrom(constructor.getParameterTypes()[parameters[i]])) {
+                throw new RuntimeException("VerifyHash on " + clazz.getName() + " names keyParts, so hashed field " + field.getName() + " needs a parameter of the same name and type");
+            }
+        }
+
+        return parameters;
+    }
+
+    private static List<IndexMetadata> buildIndexes(List<FieldMetadata> fields) {
+        final Map<String, ArrayList<FieldMetadata>> indexFields = new LinkedHashMap<String, ArrayList<FieldMetadata>>();
+
+        for (FieldMetadata field : fields) {
+            if (!field.isIndexed()) {
+                continue;
+            }
+
+            IndexMetadata.validate(field);
+
+            final String name = field.getIndexed().name().isEmpty() ? field.getName() : field.getIndexed().name();
+
+            if (!indexFields.containsKey(name)) {
+                indexFields.put(name, new ArrayList<FieldMetadata>());
+            }
+            indexFields.get(name).add(field);
+        }
+
+        final ArrayList<IndexMetadata> indexes = new ArrayList<IndexMetadata>();
+
+        for (Map.Entry<String, ArrayList<FieldMetadata>> entry : indexFields.entrySet()) {
+            final ArrayList<FieldMetadata> indexed = entry.getValue();
+            indexed.sort(Comparator.comparingInt((FieldMetadata field) -> field.getIndexed().order()));
+
+            boolean unique = false;
+            for (FieldMetadata field : indexed) {
+                unique = unique || field.getIndexed().unique();
+            }
+
+            indexes.add(new IndexMetadata(entry.getKey(), Collections.unmodifiableList(indexed), unique));
+        }
+
+        return Collections.unmodifiableList(indexes);
+    }
+}
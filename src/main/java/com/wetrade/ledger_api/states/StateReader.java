@@ -0,0 +1,310 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.wetrade.ledger_api.serialization.JsonReader;
+import com.wetrade.ledger_api.serialization.JsonToken;
+import com.wetrade.ledger_api.serialization.TypeConverter;
+
+import org.hyperledger.fabric.contract.execution.JSONTransactionSerializer;
+import org.hyperledger.fabric.contract.metadata.TypeSchema;
+import org.hyperledger.fabric.contract.routing.TypeRegistry;
+import org.hyperledger.fabric.contract.routing.impl.TypeRegistryImpl;
+import org.json.JSONException;
+
+/**
+ * Binds JSON documents read from the ledger straight onto the arguments of the
+ * constructor chosen for a set of collections. Documents are read in order so private
+ * data supplied after the world state overrides any property of the same name.
+ */
+final class StateReader {
+    private StateReader() {}
+
+    static <T extends State> T read(Class<T> clazz, String[] collections, byte[]... documents) {
+        final ConstructorMetadata constructor = StateReader.findConstructor(clazz, collections);
+        final Object[] args = new Object[constructor.getParameterCount()];
+        final boolean[] found = new boolean[args.length];
+
+        for (byte[] document : documents) {
+            final JsonReader reader = new JsonReader(document);
+            StateReader.bindObject(reader, constructor, collections, args, found);
+        }
+
+        return StateReader.build(constructor, args, found);
+    }
+
+    /**
+     * Reads the documents into constructor arguments that can build any number of states
+     * without reading them again, null if an argument is of a type that can't be copied so
+     * each state would not get its own.
+     */
+    static Binding bind(Class<?> clazz, String[] collections, byte[]... documents) {
+        final ConstructorMetadata constructor = StateReader.findConstructor(clazz, collections);
+        final Object[] args = new Object[constructor.getParameterCount()];
+        final boolean[] found = new boolean[args.length];
+
+        for (byte[] document : documents) {
+            final JsonReader reader = new JsonReader(document);
+            StateReader.bindObject(reader, constructor, collections, args, found);
+        }
+
+        for (int i = 0; i < found.length; i++) {
+            if (!found[i]) {
+                throw new JSONException("State missing required constructor argument " + constructor.getParameterNames()[i]);
+            }
+
+            if (!StateReader.isCopyable(args[i])) {
+                return null;
+            }
+        }
+
+        return new Binding(constructor, args);
+    }
+
+    static final class Binding {
+        private final ConstructorMetadata constructor;
+        private final Object[] args;
+
+        private Binding(ConstructorMetadata constructor, Object[] args) {
+            this.constructor = constructor;
+            this.args = args;
+        }
+
+        // a state with copies of the arguments, so it shares nothing mutable with the others
+        <T extends State> T newState() {
+            final Object[] copies = new Object[this.args.length];
+
+            for (int i = 0; i < copies.length; i++) {
+                copies[i] = StateReader.copy(this.args[i]);
+            }
+
+            return State.buildState(copies, this.constructor);
+        }
+    }
+
+    private static boolean isCopyable(Object value) {
+        if (value == null || StateReader.isImmutable(value)) {
+            return true;
+        }
+
+        if (value instanceof Date) {
+            return value.getClass() == Date.class;
+        }
+
+        if (value.getClass().isArray()) {
+            if (value.getClass().getComponentType().isPrimitive()) {
+                return true;
+            }
+
+            for (Object element : (Object[]) value) {
+                if (!StateReader.isCopyable(element)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        if (value.getClass() == ArrayList.class || value.getClass() == LinkedHashSet.class) {
+            for (Object element : (Collection<?>) value) {
+                if (!StateReader.isCopyable(element)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        if (value.getClass() == LinkedHashMap.class) {
+            for (Object element : ((Map<?, ?>) value).values()) {
+                if (!StateReader.isCopyable(element)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value instanceof String || value instanceof Boolean || value instanceof Character || value instanceof Enum
+            || value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+            || value instanceof Double || value instanceof Float || value.getClass() == BigDecimal.class || value.getClass() == BigInteger.class
+            || value instanceof Instant || value instanceof LocalDate || value instanceof OffsetDateTime;
+    }
+
+    // only called on values isCopyable accepted
+    private static Object copy(Object value) {
+        if (value == null || StateReader.isImmutable(value)) {
+            return value;
+        } else if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        } else if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            final Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+
+            if (value.getClass().getComponentType().isPrimitive()) {
+                System.arraycopy(value, 0, copy, 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    Array.set(copy, i, StateReader.copy(Array.get(value, i)));
+                }
+            }
+
+            return copy;
+        } else if (value instanceof Map) {
+            final Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), StateReader.copy(entry.getValue()));
+            }
+
+            return copy;
+        }
+
+        final Collection<Object> copy = value instanceof LinkedHashSet ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+
+        for (Object element : (Collection<?>) value) {
+            copy.add(StateReader.copy(element));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Reads the stateClass property from the top level of a document without decoding
+     * anything else. Returns null when the property is not there.
+     */
+    static String readStateClass(byte[] document) {
+        return StateReader.readString(document, "stateClass");
+    }
+
+    // looks only at the top level keys, null if the property is missing or not a string
+    static String readString(byte[] document, String name) {
+        final JsonReader reader = new JsonReader(document);
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(name) && reader.peek() == JsonToken.STRING) {
+                return reader.nextString();
+            }
+
+            reader.skipValue();
+        }
+
+        return null;
+    }
+
+    // top level values of the given fields, decoded as the field types
+    static Map<String, Object> readFields(byte[] document, List<FieldMetadata> fields) {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        final JsonReader reader = new JsonReader(document);
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            FieldMetadata match = null;
+
+            for (FieldMetadata field : fields) {
+                if (field.getName().equals(name)) {
+                    match = field;
+                    break;
+                }
+            }
+
+            if (match == null) {
+                reader.skipValue();
+            } else {
+                values.put(name, StateReader.readValue(reader, match.getType(), match.getConverter(), new String[] {}));
+            }
+        }
+
+        return values;
+    }
+
+    private static ConstructorMetadata findConstructor(Class<?> clazz, String[] collections) {
+        final ConstructorMetadata constructor = StateMetadata.forClass(clazz).getDeserializer(collections);
+
+        if (constructor == null) {
+            throw new RuntimeException("No valid constructor found for collections returned");
+        }
+
+        return constructor;
+    }
+
+    private static void bindObject(JsonReader reader, ConstructorMetadata constructor, String[] collections, Object[] args, boolean[] found) {
+        final Class<?>[] parameterTypes = constructor.getParameterTypes();
+        final TypeConverter<?>[] converters = constructor.getConverters();
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            final int index = constructor.indexOf(reader.nextName());
+
+            if (index < 0) {
+                reader.skipValue();
+                continue;
+            }
+
+            args[index] = StateReader.readValue(reader, parameterTypes[index], converters[index], collections);
+            found[index] = true;
+        }
+
+        reader.endObject();
+    }
+
+    private static <T extends State> T build(ConstructorMetadata constructor, Object[] args, boolean[] found) {
+        for (int i = 0; i < found.length; i++) {
+            if (!found[i]) {
+                throw new JSONException("State missing required constructor argument " + constructor.getParameterNames()[i]);
+            }
+        }
+
+        return State.buildState(args, constructor);
+    }
+
+    private static Object readValue(JsonReader reader, Class<?> type, TypeConverter<?> converter, String[] collections) {
+        final JsonToken token = reader.peek();
+
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        if (State.class.isAssignableFrom(type)) {
+            final ConstructorMetadata constructor = StateReader.findConstructor(type, collections);
+            final Object[] args = new Object[constructor.getParameterCount()];
+            final boolean[] found = new boolean[args.length];
+
+            StateReader.bindObject(reader, constructor, collections, args, found);
+            return StateReader.build(constructor, args, found);
+        } else if (converter != null) {
+            return converter.read(reader);
+        } else if (type.isArray() && token == JsonToken.BEGIN_ARRAY) {
+            // arrays of beans, leave these to the contract serializer
+            final TypeRegistry tr = new TypeRegistryImpl(); // may need some setting up
+            final JSONTransactionSerializer jts = new JSONTransactionSerializer(tr);
+
+            final TypeSchema schema = TypeSchema.typeConvert(type);
+
+            return jts.fromBuffer(reader.nextRawValue(), schema);
+        }
+
+        return reader.readValue();
+    }
+}
@@ -0,0 +1,357 @@
+package com.wetrade.ledger_api.states;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.wetrade.ledger_api.serialization.JsonWriter;
+import com.wetrade.ledger_api.serialization.TemporalCodecs;
+import com.wetrade.ledger_api.serialization.TypeConverter;
+import com.wetrade.ledger_api.serialization.TypeConverters;
+
+import org.hyperledger.fabric.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Writes states as UTF-8 JSON straight into a reusable per-thread buffer. Fields are
+ * written in the order held by StateMetadata and null fields are left out, matching
+ * what JSONObject.put did before.
+ *
+ * The encoding hashed is canonical instead: fields sorted by name, map entries and the
+ * properties of beans sorted by key at every depth, and no whitespace. Floating point and
+ * BigDecimal values, nested ones included, are written as the plain decimal string of
+ * their exact value with trailing zeros stripped, rather than through Double.toString,
+ * whose output changed in JDK 19. Arrays and collections keep their order, so a state
+ * holding a HashSet hashes by the set's iteration order. Otherwise the same state hashes
+ * the same whatever the field order, map implementation, JVM or JDK version.
+ */
+final class StateSerializer {
+    private static final Logger logger = Logger.getLogger(StateSerializer.class);
+
+    private static final ThreadLocal<StateSerializer> serializers = new ThreadLocal<StateSerializer>() {
+        @Override
+        protected StateSerializer initialValue() {
+            return new StateSerializer();
+        }
+    };
+
+    static byte[] serialize(State state, String collection, boolean force) {
+        final StateSerializer serializer = serializers.get();
+
+        // something called back into serialize part way through a write, don't trample its buffer
+        if (serializer.inUse) {
+            return new StateSerializer().write(state, collection, force);
+        }
+
+        return serializer.write(state, collection, force);
+    }
+
+    /**
+     * Encodes the state the way it is hashed, every hash field whichever collection it is
+     * kept in. The encoding is left in the thread's buffer rather than copied out, so it is
+     * only good until the next write on the thread.
+     */
+    static JsonWriter encodeForHash(State state) {
+        final StateSerializer serializer = StateSerializer.forHash();
+
+        try {
+            serializer.writeState(state, null, true);
+            return serializer.writer;
+        } finally {
+            serializer.release();
+        }
+    }
+
+    /**
+     * Encodes a state of the class from its VerifyHash arguments, the same as encodeForHash
+     * would for the state built from them but without building it. The key is rebuilt from
+     * the key parts VerifyHash names.
+     */
+    static JsonWriter encodeForHash(Class<?> clazz, Object[] args) {
+        final StateMetadata metadata = StateMetadata.forClass(clazz);
+        final List<FieldMetadata> fields = metadata.getHashFields();
+        final int[] parameters = metadata.getVerifyHashParameters();
+        final StateSerializer serializer = StateSerializer.forHash();
+
+        try {
+            serializer.writer.beginObject();
+
+            for (int i = 0; i < parameters.length; i++) {
+                final Object value;
+
+                if (parameters[i] == StateMetadata.STATE_CLASS) {
+                    value = clazz.getName();
+                } else if (parameters[i] == StateMetadata.KEY) {
+                    value = StateSerializer.key(metadata.getVerifyHashKeyParts(), args);
+                } else {
+                    value = args[parameters[i]];
+                }
+
+                serializer.writeField(fields.get(i), value, null, true);
+            }
+
+            serializer.writer.endObject();
+            return serializer.writer;
+        } finally {
+            serializer.release();
+        }
+    }
+
+    private static String key(int[] keyParts, Object[] args) {
+        final String[] parts = new String[keyParts.length];
+
+        for (int i = 0; i < keyParts.length; i++) {
+            parts[i] = String.valueOf(args[keyParts[i]]);
+        }
+
+        return State.makeKey(parts);
+    }
+
+    private static StateSerializer forHash() {
+        StateSerializer serializer = serializers.get();
+
+        if (serializer.inUse) {
+            serializer = new StateSerializer();
+        }
+
+        serializer.inUse = true;
+        serializer.canonical = true;
+        serializer.writer.reset();
+        return serializer;
+    }
+
+    private final JsonWriter writer = new JsonWriter(1024);
+    private boolean inUse;
+    private boolean canonical;
+
+    private StateSerializer() {}
+
+    private byte[] write(State state, String collection, boolean force) {
+        this.inUse = true;
+
+        try {
+            this.writer.reset();
+            this.writeState(state, collection, force);
+            return this.writer.toByteArray();
+        } finally {
+            this.inUse = false;
+        }
+    }
+
+    private void release() {
+        this.canonical = false;
+        this.inUse = false;
+    }
+
+    private void writeState(State state, String collection, boolean force) {
+        final StateMetadata metadata = StateMetadata.forClass(state.getClass());
+
+        this.writer.beginObject();
+
+        for (FieldMetadata field : this.canonical ? metadata.getHashFields() : metadata.getFields()) {
+            if (!force && !field.isIncludedIn(collection)) {
+                continue;
+            }
+
+            final Object value;
+
+            try {
+                value = field.get(state);
+            } catch (IllegalAccessException | RuntimeException e) {
+                logger.error("Failed to read field " + field.getName() + ". " + e.getMessage());
+                continue;
+            }
+
+            this.writeField(field, value, collection, force);
+        }
+
+        this.writer.endObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeField(FieldMetadata field, Object value, String collection, boolean force) {
+        if (value == null || !StateSerializer.isWritable(value)) {
+            return;
+        }
+
+        if (this.canonical) {
+            this.writer.encodedName(field.getEncodedName());
+        } else {
+            this.writer.name(field.getName());
+        }
+
+        final TypeConverter<?> converter = field.getConverter();
+
+        if (value instanceof State) {
+            this.writeState((State) value, collection, force);
+        } else if (this.canonical && StateSerializer.isCanonicalized(value)) {
+            this.writeValue(value, collection, force);
+        } else if (converter != null) {
+            ((TypeConverter<Object>) converter).write(this.writer, value);
+        } else if (TemporalCodecs.isTemporal(value.getClass())) {
+            this.writer.value(TemporalCodecs.format(value));
+        } else {
+            this.writeValue(value, collection, force);
+        }
+    }
+
+    private void writeValue(Object value, String collection, boolean force) {
+        if (value == null) {
+            this.writer.nullValue();
+        } else if (value instanceof String) {
+            this.writer.value((String) value);
+        } else if (value instanceof Boolean) {
+            this.writer.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            this.writer.value(((Number) value).longValue());
+        } else if (this.canonical && (value instanceof Double || value instanceof Float)) {
+            this.writer.numberValue(StateSerializer.canonicalNumber(new BigDecimal(((Number) value).doubleValue())));
+        } else if (this.canonical && value instanceof BigDecimal) {
+            this.writer.numberValue(StateSerializer.canonicalNumber((BigDecimal) value));
+        } else if (value instanceof Double) {
+            this.writer.value(((Double) value).doubleValue());
+        } else if (value instanceof Float) {
+            this.writer.value(((Float) value).floatValue());
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            this.writer.numberValue(value.toString());
+        } else if (value instanceof Enum) {
+            this.writer.value(((Enum<?>) value).name());
+        } else if (value instanceof State) {
+            this.writeState((State) value, collection, force);
+        } else if (value.getClass().isArray()) {
+            this.writer.beginArray();
+
+            final int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                this.writeElement(Array.get(value, i), collection, force);
+            }
+
+            this.writer.endArray();
+        } else if (value instanceof Collection) {
+            this.writer.beginArray();
+
+            for (Object element : (Collection<?>) value) {
+                this.writeElement(element, collection, force);
+            }
+
+            this.writer.endArray();
+        } else if (value instanceof Map) {
+            this.writer.beginObject();
+
+            final Map<?, ?> map = this.canonical ? StateSerializer.sorted((Map<?, ?>) value) : (Map<?, ?>) value;
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (entry.getValue() != null) {
+                    this.writer.name(String.valueOf(entry.getKey()));
+                    this.writeElement(entry.getValue(), collection, force);
+                }
+            }
+
+            this.writer.endObject();
+        } else if (this.canonical && TemporalCodecs.isTemporal(value.getClass())) {
+            this.writer.value(TemporalCodecs.format(value));
+        } else {
+            this.writer.value(value.toString());
+        }
+    }
+
+    /**
+     * Numbers and containers are written by writeValue when hashing rather than by their
+     * converters, which write numbers through Double.toString and maps in iteration order.
+     * That goes all the way down, a List<Double> or a map held in a list included.
+     */
+    private static boolean isCanonicalized(Object value) {
+        return value instanceof Double || value instanceof Float || value instanceof BigDecimal
+            || value.getClass().isArray() || value instanceof Collection || value instanceof Map;
+    }
+
+    private static Map<String, Object> sorted(Map<?, ?> map) {
+        final TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+
+        return sorted;
+    }
+
+    // the exact value, so 0.1 is written with all the digits of the double nearest it
+    private static String canonicalNumber(BigDecimal value) {
+        return value.signum() == 0 ? "0" : value.stripTrailingZeros().toPlainString();
+    }
+
+    // org.json wraps array and collection members as beans unless they are java types
+    @SuppressWarnings("unchecked")
+    private void writeElement(Object element, String collection, boolean force) {
+        if (element != null && !(element instanceof State) && StateSerializer.isBean(element)) {
+            if (this.canonical) {
+                final TypeConverter<?> converter = TypeConverters.forType(element.getClass());
+
+                if (converter != null) {
+                    ((TypeConverter<Object>) converter).write(this.writer, element);
+                } else {
+                    this.writeCanonicalJson(new JSONObject(element));
+                }
+            } else {
+                this.writer.rawValue(new JSONObject(element).toString());
+            }
+        } else {
+            this.writeValue(element, collection, force);
+        }
+    }
+
+    // a bean as org.json sees it, with its properties sorted
+    private void writeCanonicalJson(Object value) {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            final String[] names = object.keySet().toArray(new String[object.length()]);
+            Arrays.sort(names);
+
+            this.writer.beginObject();
+
+            for (String name : names) {
+                this.writer.name(name);
+                this.writeCanonicalJson(object.get(name));
+            }
+
+            this.writer.endObject();
+        } else if (value instanceof JSONArray) {
+            this.writer.beginArray();
+
+            for (Object element : (JSONArray) value) {
+                this.writeCanonicalJson(element);
+            }
+
+            this.writer.endArray();
+        } else if (value == JSONObject.NULL) {
+            this.writer.nullValue();
+        } else {
+            this.writeValue(value, null, true);
+        }
+    }
+
+    private static boolean isBean(Object value) {
+        final Class<?> clazz = value.getClass();
+        final Package objectPackage = clazz.getPackage();
+        final String packageName = objectPackage != null ? objectPackage.getName() : "";
+
+        return !clazz.isArray() && !(value instanceof Collection) && !(value instanceof Map) && !(value instanceof Enum)
+            && !packageName.startsWith("java.") && !packageName.startsWith("javax.") && clazz.getClassLoader() != null;
+    }
+
+    private static boolean isWritable(Object value) {
+        if (value instanceof Double) {
+            return !((Double) value).isNaN() && !((Double) value).isInfinite();
+        } else if (value instanceof Float) {
+            return !((Float) value).isNaN() && !((Float) value).isInfinite();
+        }
+
+        return true;
+    }
+}
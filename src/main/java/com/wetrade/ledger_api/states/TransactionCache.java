@@ -0,0 +1,248 @@
+package com.wetrade.ledger_api.states;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import com.wetrade.ledger_api.handling.KeyRangeHandler;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+
+/**
+ * Read-through, write-through cache of world state and private data for a single
+ * transaction. Every StateList created with the same Context shares one cache, so a key
+ * read by one list is not fetched from the peer again by another, and reads after a
+ * write in the same transaction see the written value rather than the committed one.
+ *
+ * Missing keys are cached as an empty value. Failed calls, such as reading a collection
+ * the peer is not a member of, are not cached.
+ *
+ * When buffered, writes and deletes of world state and private data are held in a write
+ * set keyed by ledger key instead of going to the stub, and flushed in one go. Repeated
+ * writes to a key collapse into the last one. What is held is the bytes, so a state
+ * changed after it was written doesn't change what is flushed. Reads consult the write
+ * set first so they still see pending changes.
+ */
+final class TransactionCache {
+    private static final byte[] EMPTY = new byte[0];
+
+    // contexts are created per transaction, let the entry go with its context
+    private static final Map<Context, TransactionCache> caches = Collections.synchronizedMap(new WeakHashMap<Context, TransactionCache>());
+
+    static TransactionCache forContext(Context ctx) {
+        synchronized (caches) {
+            TransactionCache cache = caches.get(ctx);
+
+            if (cache == null) {
+                cache = new TransactionCache(ctx.getStub());
+                caches.put(ctx, cache);
+            }
+
+            return cache;
+        }
+    }
+
+    private final ChaincodeStub stub;
+    private final Map<String, byte[]> worldState = new HashMap<String, byte[]>();
+    private final Map<String, Map<String, byte[]>> privateData = new HashMap<String, Map<String, byte[]>>();
+    // every world state write made in the transaction, flushed or not, empty for a delete,
+    // kept in the ledger's key order
+    private final TreeMap<String, byte[]> written = new TreeMap<String, byte[]>(KeyRangeHandler::compareKeys);
+    // buffered writes in the order they were first made, a null value is a delete
+    private final Map<String, byte[]> pendingState = new LinkedHashMap<String, byte[]>();
+    private final Map<String, Map<String, byte[]>> pendingPrivateData = new LinkedHashMap<String, Map<String, byte[]>>();
+    private boolean buffered;
+    private boolean flushedAtEnd;
+
+    private TransactionCache(ChaincodeStub stub) {
+        this.stub = stub;
+    }
+
+    synchronized boolean isBuffered() {
+        return this.buffered;
+    }
+
+    synchronized void setBuffered(boolean buffered) {
+        if (buffered && !this.flushedAtEnd) {
+            throw new RuntimeException("Cannot buffer writes. The contract must implement BufferedContract so they are flushed when the transaction ends");
+        }
+
+        if (this.buffered && !buffered) {
+            this.flush();
+        }
+
+        this.buffered = buffered;
+    }
+
+    // the transaction is run by a BufferedContract, which flushes once it is over
+    synchronized void beginTransaction() {
+        this.flushedAtEnd = true;
+        this.buffered = true;
+    }
+
+    synchronized void endTransaction() {
+        this.flush();
+        this.buffered = false;
+        this.flushedAtEnd = false;
+    }
+
+    synchronized boolean hasState(String key) {
+        return this.getState(key).length > 0;
+    }
+
+    synchronized byte[] getState(String key) {
+        if (this.pendingState.containsKey(key)) {
+            return TransactionCache.orEmpty(this.pendingState.get(key));
+        }
+
+        byte[] value = this.worldState.get(key);
+
+        if (value == null) {
+            value = TransactionCache.orEmpty(this.stub.getState(key));
+            this.worldState.put(key, value);
+        }
+
+        return value;
+    }
+
+    synchronized void putState(String key, byte[] value) {
+        this.written.put(key, value);
+
+        if (this.buffered) {
+            this.pendingState.put(key, value);
+            return;
+        }
+
+        this.stub.putState(key, value);
+        this.worldState.put(key, value);
+    }
+
+    synchronized void delState(String key) {
+        this.written.put(key, EMPTY);
+
+        if (this.buffered) {
+            this.pendingState.put(key, null);
+            return;
+        }
+
+        this.stub.delState(key);
+        this.worldState.put(key, EMPTY);
+    }
+
+    /**
+     * The world state writes made so far in the transaction to keys starting with prefix,
+     * in ledger key order and empty for a delete. Range and partial key reads don't see these.
+     */
+    synchronized Map<String, byte[]> getWritten(String prefix) {
+        final Map<String, byte[]> writes = new LinkedHashMap<String, byte[]>();
+
+        for (Map.Entry<String, byte[]> entry : this.written.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+
+            writes.put(entry.getKey(), entry.getValue());
+        }
+
+        return writes;
+    }
+
+    synchronized byte[] getPrivateData(String collection, String key) {
+        final Map<String, byte[]> pending = this.pendingPrivateData.get(collection);
+
+        if (pending != null && pending.containsKey(key)) {
+            return TransactionCache.orEmpty(pending.get(key));
+        }
+
+        final Map<String, byte[]> collectionData = this.collection(this.privateData, collection);
+        byte[] value = collectionData.get(key);
+
+        if (value == null) {
+            value = TransactionCache.orEmpty(this.stub.getPrivateData(collection, key));
+            collectionData.put(key, value);
+        }
+
+        return value;
+    }
+
+    synchronized void putPrivateData(String collection, String key, byte[] value) {
+        if (this.buffered) {
+            this.collection(this.pendingPrivateData, collection).put(key, value);
+            return;
+        }
+
+        this.stub.putPrivateData(collection, key, value);
+        this.collection(this.privateData, collection).put(key, value);
+    }
+
+    synchronized void delPrivateData(String collection, String key) {
+        if (this.buffered) {
+            this.collection(this.pendingPrivateData, collection).put(key, null);
+            return;
+        }
+
+        this.stub.delPrivateData(collection, key);
+        this.collection(this.privateData, collection).put(key, EMPTY);
+    }
+
+    synchronized void flush() {
+        final boolean buffered = this.buffered;
+        this.buffered = false;
+
+        try {
+            for (Map.Entry<String, byte[]> write : this.pendingState.entrySet()) {
+                final String key = write.getKey();
+
+                if (write.getValue() != null) {
+                    this.stub.putState(key, write.getValue());
+                    this.worldState.put(key, write.getValue());
+                } else if (!TransactionCache.isKnownMissing(this.worldState.get(key))) {
+                    this.stub.delState(key);
+                    this.worldState.put(key, EMPTY);
+                }
+            }
+
+            for (Map.Entry<String, Map<String, byte[]>> collection : this.pendingPrivateData.entrySet()) {
+                for (Map.Entry<String, byte[]> write : collection.getValue().entrySet()) {
+                    try {
+                        if (write.getValue() != null) {
+                            this.putPrivateData(collection.getKey(), write.getKey(), write.getValue());
+                        } else if (!TransactionCache.isKnownMissing(this.collection(this.privateData, collection.getKey()).get(write.getKey()))) {
+                            this.delPrivateData(collection.getKey(), write.getKey());
+                        }
+                    } catch (Exception err) {
+                        // can't access that store
+                    }
+                }
+            }
+        } finally {
+            this.pendingState.clear();
+            this.pendingPrivateData.clear();
+            this.buffered = buffered;
+        }
+    }
+
+    private Map<String, byte[]> collection(Map<String, Map<String, byte[]>> collections, String collection) {
+        Map<String, byte[]> collectionData = collections.get(collection);
+
+        if (collectionData == null) {
+            collectionData = new LinkedHashMap<String, byte[]>();
+            collections.put(collection, collectionData);
+        }
+
+        return collectionData;
+    }
+
+    private static byte[] orEmpty(byte[] value) {
+        return value != null ? value : EMPTY;
+    }
+
+    // a delete of a key read as missing, and not written since, changes nothing
+    private static boolean isKnownMissing(byte[] value) {
+        return value != null && value.length == 0;
+    }
+}
@@ -0,0 +1,159 @@
+package com.wetrade.ledger_api.states;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.junit.jupiter.api.Test;
+
+public class DeltaAggregateTest {
+    /**
+     * The world state as the peer shows it to a transaction: reads and scans see what earlier
+     * transactions committed, never the transaction's own writes.
+     */
+    private static final class Ledger {
+        private final TreeMap<String, byte[]> committed = new TreeMap<String, byte[]>();
+        private final Map<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+        private int transactions;
+
+        Context begin() {
+            final String txId = "tx" + this.transactions++;
+
+            return new Context((ChaincodeStub) Proxy.newProxyInstance(ChaincodeStub.class.getClassLoader(), new Class<?>[] {ChaincodeStub.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getTxId":
+                        return txId;
+                    case "createCompositeKey":
+                        return new CompositeKey((String) args[0], (String[]) args[1]);
+                    case "splitCompositeKey":
+                        return CompositeKey.parseCompositeKey((String) args[0]);
+                    case "getState":
+                        return this.committed.get(args[0]);
+                    case "putState":
+                        this.pending.put((String) args[0], (byte[]) args[1]);
+                        return null;
+                    case "delState":
+                        this.pending.put((String) args[0], null);
+                        return null;
+                    case "getStateByPartialCompositeKey":
+                        return this.scan(args[0].toString());
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }));
+        }
+
+        void commit() {
+            for (Map.Entry<String, byte[]> write : this.pending.entrySet()) {
+                if (write.getValue() == null) {
+                    this.committed.remove(write.getKey());
+                } else {
+                    this.committed.put(write.getKey(), write.getValue());
+                }
+            }
+
+            this.pending.clear();
+        }
+
+        private QueryResultsIterator<KeyValue> scan(String prefix) {
+            final List<KeyValue> entries = new ArrayList<KeyValue>();
+
+            for (Map.Entry<String, byte[]> entry : this.committed.tailMap(prefix).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+
+                entries.add(Ledger.keyValue(entry.getKey(), entry.getValue()));
+            }
+
+            return new QueryResultsIterator<KeyValue>() {
+                @Override
+                public Iterator<KeyValue> iterator() {
+                    return entries.iterator();
+                }
+
+                @Override
+                public void close() {}
+            };
+        }
+
+        private static KeyValue keyValue(String key, byte[] value) {
+            return new KeyValue() {
+                @Override
+                public String getKey() {
+                    return key;
+                }
+
+                @Override
+                public byte[] getValue() {
+                    return value;
+                }
+
+                @Override
+                public String getStringValue() {
+                    return new String(value, StandardCharsets.UTF_8);
+                }
+            };
+        }
+    }
+
+    @Test
+    public void getAfterCompactDoesNotCountDeltasTwice() {
+        final Ledger ledger = new Ledger();
+
+        for (String amount : Arrays.asList("10", "5", "2.5")) {
+            new DeltaAggregate(ledger.begin(), "balances").add("alice", new BigDecimal(amount));
+            ledger.commit();
+        }
+
+        final DeltaAggregate balances = new DeltaAggregate(ledger.begin(), "balances");
+        balances.add("alice", new BigDecimal("1"));
+
+        assertThat(balances.get("alice")).isEqualTo(new BigDecimal("18.5"));
+        assertThat(balances.compact("alice")).isEqualTo(new BigDecimal("18.5"));
+        assertThat(balances.get("alice")).isEqualTo(new BigDecimal("18.5"));
+
+        balances.subtract("alice", new BigDecimal("0.5"));
+
+        assertThat(balances.get("alice")).isEqualTo(new BigDecimal("18.0"));
+        assertThat(balances.compact("alice")).isEqualTo(new BigDecimal("18.0"));
+
+        ledger.commit();
+
+        assertThat(new DeltaAggregate(ledger.begin(), "balances").get("alice")).isEqualTo(new BigDecimal("18.0"));
+        assertThat(ledger.committed.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void deleteDropsDeltasWrittenInTheTransaction() {
+        final Ledger ledger = new Ledger();
+
+        new DeltaAggregate(ledger.begin(), "balances").add("alice", new BigDecimal("10"));
+        ledger.commit();
+
+        final DeltaAggregate balances = new DeltaAggregate(ledger.begin(), "balances");
+        balances.compact("alice");
+        balances.add("alice", new BigDecimal("3"));
+        balances.delete("alice");
+
+        assertThat(balances.get("alice")).isEqualTo(BigDecimal.ZERO);
+
+        ledger.commit();
+
+        assertThat(ledger.committed.isEmpty()).isEqualTo(true);
+    }
+}
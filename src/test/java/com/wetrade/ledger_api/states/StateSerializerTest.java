@@ -0,0 +1,72 @@
+package com.wetrade.ledger_api.states;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.wetrade.ledger_api.Asset;
+
+import org.junit.jupiter.api.Test;
+
+public class StateSerializerTest {
+    public static class Readings extends Asset {
+        private List<Double> values;
+        private Map<String, Object> limits;
+
+        public Readings(String id, List<Double> values, Map<String, Object> limits) {
+            super(id);
+            this.values = values;
+            this.limits = limits;
+        }
+    }
+
+    private static String encodeForHash(State state) {
+        return new String(StateSerializer.encodeForHash(state).toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void hashesNestedNumbersAndMapsCanonically() {
+        final Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("max", 2.50);
+        nested.put("min", 0.5);
+
+        final Map<String, Object> limits = new HashMap<String, Object>();
+        limits.put("zeta", Arrays.asList(1e-7));
+        limits.put("alpha", nested);
+
+        final Readings readings = new Readings("r1", Arrays.asList(0.5, 1e21, 2.0), limits);
+
+        assertThat(StateSerializerTest.encodeForHash(readings)).isEqualTo(
+            "{\"id\":\"r1\",\"key\":\"r1\",\"limits\":{\"alpha\":{\"max\":2.5,\"min\":0.5},"
+            + "\"zeta\":[0.0000000999999999999999954748111825886258685613938723690807819366455078125]},"
+            + "\"stateClass\":\"com.wetrade.ledger_api.states.StateSerializerTest$Readings\","
+            + "\"values\":[0.5,1000000000000000000000,2]}"
+        );
+    }
+
+    @Test
+    public void hashesTheSameWhateverTheMapOrder() {
+        final Map<String, Object> hashed = new HashMap<String, Object>();
+        final Map<String, Object> linked = new LinkedHashMap<String, Object>();
+        final Map<String, Object> reversed = new LinkedHashMap<String, Object>();
+
+        for (String name : new String[]{"a", "b", "c", "d", "e", "f", "g", "h"}) {
+            hashed.put(name, 0.1);
+            linked.put(name, 0.1);
+        }
+
+        for (String name : new String[]{"h", "g", "f", "e", "d", "c", "b", "a"}) {
+            reversed.put(name, 0.1);
+        }
+
+        final String expected = StateSerializerTest.encodeForHash(new Readings("r1", Arrays.asList(0.1), linked));
+
+        assertThat(StateSerializerTest.encodeForHash(new Readings("r1", Arrays.asList(0.1), hashed))).isEqualTo(expected);
+        assertThat(StateSerializerTest.encodeForHash(new Readings("r1", Arrays.asList(0.1), reversed))).isEqualTo(expected);
+    }
+}
@@ -0,0 +1,54 @@
+package com.wetrade.ledger_api.tools;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import com.wetrade.ledger_api.handling.CouchDBIndexes;
+
+/**
+ * Writes the CouchDB indexes for the given state classes under the output directory, see
+ * CouchDBIndexes.write. Run at build time by the generateCouchDBIndexes task, it isn't
+ * part of the library jar. Pass the chaincode's collections with --collections=a,b so
+ * fields private to every collection are indexed in each of them.
+ */
+public final class GenerateCouchDBIndexes {
+    private static final String COLLECTIONS = "--collections=";
+
+    private GenerateCouchDBIndexes() {}
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> collections = new ArrayList<String>();
+
+        for (String arg : args) {
+            if (arg.startsWith(COLLECTIONS)) {
+                for (String collection : arg.substring(COLLECTIONS.length()).split(",")) {
+                    if (!collection.isEmpty()) {
+                        collections.add(collection);
+                    }
+                }
+            } else {
+                names.add(arg);
+            }
+        }
+
+        if (names.size() < 2) {
+            throw new IllegalArgumentException("Usage: GenerateCouchDBIndexes [--collections=name,...] <output directory> <state class>...");
+        }
+
+        final ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+
+        for (String name : names.subList(1, names.size())) {
+            final Class<?> clazz = Class.forName(name);
+
+            if (collections.isEmpty() && CouchDBIndexes.forClass(clazz).isInEveryCollection()) {
+                System.err.println("Warning: " + name + " has fields private to every collection, they are only indexed in the collections it names. Pass --collections to index them in the others.");
+            }
+
+            classes.add(clazz);
+        }
+
+        CouchDBIndexes.write(Paths.get(names.get(0)), classes, collections);
+    }
+}